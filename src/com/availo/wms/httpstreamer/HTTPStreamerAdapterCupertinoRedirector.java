@@ -87,6 +87,16 @@ public class HTTPStreamerAdapterCupertinoRedirector extends HTTPStreamerAdapterC
 	public void serviceMsg(long timestamp, org.apache.mina.common.IoSession ioSession, com.wowza.wms.server.RtmpRequestMessage req, com.wowza.wms.server.RtmpResponseMessage resp) {
 		super.serviceMsg(timestamp, ioSession, req, resp);
 
+		// Set in ModuleLoadBalancerRedirector.onHTTPSessionCreate() when redirects are rate limited. That session is not
+		// rejected, so its requests still end up here. Tell the player when to try again, without the internal header.
+		if (resp.getHeaders().containsKey("X-LoadBalancer-RetryAfter")) {
+			String retryAfter = (String)resp.getHeaders().remove("X-LoadBalancer-RetryAfter");
+			resp.setResponseCode(503);
+			resp.getHeaders().put("Retry-After", retryAfter);
+			resp.getBodyList().clear();
+			return;
+		}
+
 		// Don't waste time and CPU cycles on parsing requests for anything other than .m3u8 (or .m3u) playlists, optionally with parameters of some sort
 		if (!req.getPath().matches("(?i).*\\/([^\\/]*)\\.m3u8?(\\?[^\\/]*)?$")) {
 			getLogger().debug(String.format("%s: Received a non-Playlist request. (%s)", req.getSessionInfo().getVHost().getName(), req.getPath()));
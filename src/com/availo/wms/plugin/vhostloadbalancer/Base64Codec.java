@@ -0,0 +1,115 @@
+/**
+ * Base64Codec.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+/**
+ * Base64 (RFC 4648, with padding) for the binary parts of the status messages, which are text based.
+ * 
+ * Decoding writes into a buffer owned by the caller, so it can be reused between messages.
+ */
+class Base64Codec {
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private Base64Codec() {
+	}
+
+	/**
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @param dest
+	 */
+	static void encode(byte[] src, int offset, int length, StringBuffer dest) {
+		int end = offset + length;
+		for (int i = offset; i < end; i += 3) {
+			int chunk = (src[i] & 0xFF) << 16;
+			if (i + 1 < end) {
+				chunk |= (src[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < end) {
+				chunk |= src[i + 2] & 0xFF;
+			}
+			dest.append(ALPHABET[(chunk >>> 18) & 0x3F]);
+			dest.append(ALPHABET[(chunk >>> 12) & 0x3F]);
+			dest.append(i + 1 < end ? ALPHABET[(chunk >>> 6) & 0x3F] : '=');
+			dest.append(i + 2 < end ? ALPHABET[chunk & 0x3F] : '=');
+		}
+	}
+
+	/**
+	 * @param src
+	 * @return The number of bytes src decodes to, or -1 if it can't be base64
+	 */
+	static int decodedLength(String src) {
+		if (src == null || src.length() % 4 != 0) {
+			return -1;
+		}
+		int padding = src.endsWith("==") ? 2 : src.endsWith("=") ? 1 : 0;
+		return src.length() / 4 * 3 - padding;
+	}
+
+	/**
+	 * @param src
+	 * @param dest At least decodedLength(src) bytes
+	 * @return The number of bytes written to dest, or -1 if src isn't valid base64
+	 */
+	static int decode(String src, byte[] dest) {
+		int length = decodedLength(src);
+		if (length < 0 || dest.length < length) {
+			return -1;
+		}
+		int position = 0;
+		for (int i = 0; i < src.length(); i += 4) {
+			int chunk = 0;
+			for (int j = 0; j < 4; j++) {
+				char c = src.charAt(i + j);
+				int value = decodeChar(c);
+				if (value < 0) {
+					// Padding is only allowed at the very end
+					if (c != '=' || i + 4 < src.length()) {
+						return -1;
+					}
+					value = 0;
+				}
+				chunk = (chunk << 6) | value;
+			}
+			for (int j = 2; j >= 0 && position < length; j--) {
+				dest[position++] = (byte)(chunk >>> (j * 8));
+			}
+		}
+		return length;
+	}
+
+	private static int decodeChar(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return c - 'A';
+		}
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 26;
+		}
+		if (c >= '0' && c <= '9') {
+			return c - '0' + 52;
+		}
+		if (c == '+') {
+			return 62;
+		}
+		if (c == '/') {
+			return 63;
+		}
+		return -1;
+	}
+}
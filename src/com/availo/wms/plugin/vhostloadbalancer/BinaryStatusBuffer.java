@@ -0,0 +1,192 @@
+/**
+ * BinaryStatusBuffer.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+
+/**
+ * Reusable buffer for the binary status messages: big-endian fixed-width numbers and length-prefixed UTF-8 strings.
+ * 
+ * The status messages themselves are text, so the buffer is sent as a single base64 field. The backing array only
+ * grows, so a buffer that is reused for every message stops allocating once it has seen the largest message.
+ * 
+ * Not thread-safe. The sender uses one buffer per monitor, and the listener one per thread.
+ */
+public class BinaryStatusBuffer {
+	private byte[] data;
+	private int position = 0;
+	private int limit = 0;
+
+	public BinaryStatusBuffer(int capacity) {
+		this.data = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Empty the buffer before writing a new message
+	 */
+	public void clear() {
+		position = 0;
+		limit = 0;
+	}
+
+	public int length() {
+		return limit;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (limit + extra > data.length) {
+			byte[] grown = new byte[Math.max(data.length * 2, limit + extra)];
+			System.arraycopy(data, 0, grown, 0, limit);
+			data = grown;
+		}
+	}
+
+	public void putByte(int value) {
+		ensureCapacity(1);
+		data[limit++] = (byte)value;
+	}
+
+	public void putShort(int value) {
+		ensureCapacity(2);
+		data[limit++] = (byte)(value >>> 8);
+		data[limit++] = (byte)value;
+	}
+
+	public void putInt(int value) {
+		ensureCapacity(4);
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			data[limit++] = (byte)(value >>> shift);
+		}
+	}
+
+	public void putLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			data[limit++] = (byte)(value >>> shift);
+		}
+	}
+
+	/**
+	 * Put a string as an unsigned 16-bit length followed by the UTF-8 bytes
+	 * @param value
+	 */
+	public void putString(String value) {
+		byte[] bytes = toUTF8(value);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("String too long for a status message: " + bytes.length + " bytes");
+		}
+		putShort(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, data, limit, bytes.length);
+		limit += bytes.length;
+	}
+
+	private void checkRemaining(int length) {
+		if (length < 0 || limit - position < length) {
+			throw new BufferUnderflowException();
+		}
+	}
+
+	public int getByte() {
+		checkRemaining(1);
+		return data[position++] & 0xFF;
+	}
+
+	public int getShort() {
+		checkRemaining(2);
+		int value = (data[position] & 0xFF) << 8 | (data[position + 1] & 0xFF);
+		position += 2;
+		return value;
+	}
+
+	public int getInt() {
+		checkRemaining(4);
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (data[position++] & 0xFF);
+		}
+		return value;
+	}
+
+	public long getLong() {
+		checkRemaining(8);
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (data[position++] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The next string, interned, since the same vhost names arrive in every message
+	 */
+	public String getString() {
+		int length = getShort();
+		checkRemaining(length);
+		String value;
+		try {
+			value = new String(data, position, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+		position += length;
+		return value.intern();
+	}
+
+	/**
+	 * @return The number of bytes left to read
+	 */
+	public int remaining() {
+		return limit - position;
+	}
+
+	/**
+	 * Append the written bytes as base64
+	 * @param dest
+	 */
+	public void appendBase64(StringBuffer dest) {
+		Base64Codec.encode(data, 0, limit, dest);
+	}
+
+	/**
+	 * Replace the contents of the buffer with a base64 encoded message, and start reading from the beginning
+	 * @param encoded
+	 * @return false if the message isn't valid base64
+	 */
+	public boolean readBase64(String encoded) {
+		clear();
+		int length = Base64Codec.decodedLength(encoded);
+		if (length < 0) {
+			return false;
+		}
+		ensureCapacity(length);
+		if (Base64Codec.decode(encoded, data) != length) {
+			return false;
+		}
+		limit = length;
+		return true;
+	}
+
+	private static byte[] toUTF8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+}
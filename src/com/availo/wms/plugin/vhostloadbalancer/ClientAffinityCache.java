@@ -0,0 +1,130 @@
+/**
+ * ClientAffinityCache.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded table of which server each client was last sent to.
+ * 
+ * The table is split into segments with their own lock, so concurrent redirects only contend when their keys end up
+ * in the same segment. Each segment is a LinkedHashMap in access order, which evicts its least recently used entry
+ * when it is full. Expired entries are removed when they are looked up, or when they are evicted.
+ */
+public class ClientAffinityCache {
+
+	/**
+	 * Number of segments. Must be a power of two.
+	 */
+	private static final int SEGMENTS = 64;
+
+	private static class Entry {
+		final String serverId;
+		final long expires;
+
+		Entry(String serverId, long expires) {
+			this.serverId = serverId;
+			this.expires = expires;
+		}
+	}
+
+	private static class Segment extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		Segment(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final long ttl;
+
+	/**
+	 * @param maxEntries Maximum number of clients to remember (rounded up to a multiple of the number of segments)
+	 * @param ttl How long to remember a client, in milliseconds
+	 */
+	public ClientAffinityCache(int maxEntries, long ttl) {
+		int segmentSize = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+		this.ttl = ttl;
+	}
+
+	private Segment segmentFor(String key) {
+		int h = key.hashCode();
+		// Spread the high bits, since String.hashCode() of similar IP addresses mostly differs in the low bits
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * @param key
+	 * @return The serverId this client was last sent to, or null if it is unknown or expired
+	 */
+	public String get(String key) {
+		Segment segment = segmentFor(key);
+		long now = System.currentTimeMillis();
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expires < now) {
+				segment.remove(key);
+				return null;
+			}
+			return entry.serverId;
+		}
+	}
+
+	/**
+	 * Remember (or refresh) the server this client was sent to
+	 * @param key
+	 * @param serverId
+	 */
+	public void put(String key, String serverId) {
+		Segment segment = segmentFor(key);
+		Entry entry = new Entry(serverId, System.currentTimeMillis() + ttl);
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * @return The number of clients currently remembered, including expired entries that haven't been removed yet
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < SEGMENTS; i++) {
+			synchronized (segments[i]) {
+				size += segments[i].size();
+			}
+		}
+		return size;
+	}
+}
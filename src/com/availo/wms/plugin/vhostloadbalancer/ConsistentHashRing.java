@@ -0,0 +1,134 @@
+/**
+ * ConsistentHashRing.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import java.util.Arrays;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+
+/**
+ * Consistent hash ring with bounded loads, used to send viewers of the same stream to the same servers.
+ * 
+ * Every server gets a number of points on the ring. A stream key is hashed onto the ring, and the first server
+ * clockwise from that point gets the redirect, as long as it is a candidate and isn't above its share of the
+ * total load times the load factor. If it is, the stream spills over to the next servers on the ring.
+ * (Mirrokni, Thorup and Zadimoghaddam: "Consistent Hashing with Bounded Loads")
+ * 
+ * The ring is immutable, and built for the servers in a single vhost pool.
+ */
+public class ConsistentHashRing {
+	/**
+	 * Points per server. More points give a more even spread, at the cost of memory and build time.
+	 */
+	public static final int POINTS_PER_SERVER = 64;
+
+	/**
+	 * Sorted hashes for all points on the ring
+	 */
+	private final long[] hashes;
+	
+	/**
+	 * The server index (in the pool) owning the point with the same position in hashes
+	 */
+	private final int[] owners;
+
+	public ConsistentHashRing(ServerHolder[] servers) {
+		int points = servers.length * POINTS_PER_SERVER;
+		long[] unsorted = new long[points];
+		for (int i = 0; i < servers.length; i++) {
+			for (int j = 0; j < POINTS_PER_SERVER; j++) {
+				// Keep the server index in the lowest bits, so we can find the owner again after sorting
+				unsorted[i * POINTS_PER_SERVER + j] = (hash(servers[i].serverId + "#" + j) & ~0xFFFFL) | i;
+			}
+		}
+		Arrays.sort(unsorted);
+
+		hashes = unsorted;
+		owners = new int[points];
+		for (int i = 0; i < points; i++) {
+			owners[i] = (int)(unsorted[i] & 0xFFFFL);
+		}
+	}
+
+	/**
+	 * Find the server for a stream key.
+	 * @param key Stream key
+	 * @param servers The servers the ring was built from
+	 * @param candidates Indexes in servers that may be selected
+	 * @param count Number of valid entries in candidates
+	 * @param loadFactor Maximum load compared to the server's share of the total load (1.25 = 25% above its share)
+	 * @return Index in servers, or -1 if every candidate is above its bound
+	 */
+	public int select(String key, ServerHolder[] servers, int[] candidates, int count, double loadFactor) {
+		if (hashes.length == 0 || count == 0) {
+			return -1;
+		}
+
+		boolean[] eligible = new boolean[servers.length];
+		double totalLoad = 0;
+		double totalWeight = 0;
+		for (int i = 0; i < count; i++) {
+			ServerHolder serverHolder = servers[candidates[i]];
+			eligible[candidates[i]] = true;
+			totalLoad += serverHolder.getEstimatedOutRate();
+			totalWeight += serverHolder.getScaledWeight();
+		}
+
+		int position = Arrays.binarySearch(hashes, (hash(key) & ~0xFFFFL) | 0xFFFFL);
+		if (position < 0) {
+			position = -position - 1;
+		}
+
+		int checked = 0;
+		for (int i = 0; i < hashes.length && checked < count; i++) {
+			int owner = owners[(position + i) % hashes.length];
+			if (!eligible[owner]) {
+				continue;
+			}
+			// Only check every server once, even though it has many points on the ring
+			eligible[owner] = false;
+			checked++;
+
+			ServerHolder serverHolder = servers[owner];
+			// The bound includes the redirect we're about to hand out, so an idle pool never rejects everything
+			double bound = loadFactor * (totalLoad + serverHolder.redirectRate) * serverHolder.getScaledWeight() / totalWeight;
+			if (serverHolder.getEstimatedOutRate() + serverHolder.redirectRate <= bound) {
+				return owner;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 64-bit FNV-1a, followed by a bit mixer, since String.hashCode() spreads similar stream names poorly
+	 * @param key
+	 * @return
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return hash;
+	}
+}
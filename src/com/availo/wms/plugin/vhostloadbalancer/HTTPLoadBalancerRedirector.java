@@ -20,6 +20,7 @@
 package com.availo.wms.plugin.vhostloadbalancer;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
 
 //import com.wowza.util.*;
@@ -45,6 +46,8 @@ public class HTTPLoadBalancerRedirector extends HTTProvider2Base {
 	private LoadBalancerListener listener = null;
 	private LoadBalancerRedirectorBandwidth redirector = null;
 	private boolean enableServerInfo = false;
+	private boolean enableServerControl = false;
+	private String serverControlKey = null;
 
 	public void onBind(IVHost vhost, HostPort hostPort) {
 		super.onBind(vhost, hostPort);
@@ -59,6 +62,12 @@ public class HTTPLoadBalancerRedirector extends HTTProvider2Base {
 				// Allow using the original name for this property, in case of old config files.
 				enableServerInfo = this.properties.getPropertyBoolean("enableServerInfoXML", enableServerInfo);
 			}
+			enableServerControl = this.properties.getPropertyBoolean("enableServerControl", enableServerControl);
+			serverControlKey = this.properties.getPropertyStr("serverControlKey", serverControlKey);
+			if (enableServerControl && (serverControlKey == null || serverControlKey.length() == 0)) {
+				WMSLoggerFactory.getLogger(HTTPLoadBalancerRedirector.class).warn("HTTPLoadBalancerRedirector.setProperties: enableServerControl requires a serverControlKey. Server control is disabled.");
+				enableServerControl = false;
+			}
 		}
 	}
 
@@ -117,8 +126,25 @@ public class HTTPLoadBalancerRedirector extends HTTProvider2Base {
 			retStr = jsonOutput.toString();
 			resp.setHeader("Content-Type", "text/plain");
 		}
+		else if (enableServerControl && (req.getParameter("drain") != null || req.getParameter("undrain") != null || req.getParameter("weight") != null)) {
+			retStr = doServerControl(req, resp);
+		}
+		else if (req.getParameter("count") != null) {
+			retStr = getRedirects(vhostName, req, resp);
+		}
 		else {
-			LoadBalancerRedirect redirect = this.redirector == null ? null : this.redirector.getRedirect(vhostName);
+			LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(vhostName);
+			setClient(request, req);
+			request.setRequiredCapabilities(LoadBalancerCapabilities.parse(req.getParameter("capabilities")));
+			LoadBalancerRedirect redirect = null;
+			if (this.redirector != null) {
+				try {
+					redirect = this.redirector.requestRedirect(request);
+				} catch (LoadBalancerRejectedException e) {
+					setRejected(resp, e);
+					WMSLoggerFactory.getLogger(HTTPLoadBalancerRedirector.class).debug("HTTPLoadBalancerRedirector: " + e.getMessage());
+				}
+			}
 			retStr = "redirect=" + (redirect == null ? "unknown" : redirect.getHost());
 		}
 
@@ -131,4 +157,118 @@ public class HTTPLoadBalancerRedirector extends HTTProvider2Base {
 		}
 
 	}
+
+	/**
+	 * Drain, undrain or override the weight of a server. Requires the "key" parameter to match serverControlKey.
+	 * 
+	 * ?drain=serverId&time=seconds
+	 * ?undrain=serverId
+	 * ?serverId=serverId&weight=weight (0 to use the weight reported by the sender)
+	 * @param req
+	 * @param resp
+	 * @return
+	 */
+	private String doServerControl(IHTTPRequest req, IHTTPResponse resp) {
+		String key = req.getParameter("key");
+		if (key == null || !MessageDigest.isEqual(key.getBytes(), serverControlKey.getBytes())) {
+			resp.setResponseCode(403);
+			WMSLoggerFactory.getLogger(HTTPLoadBalancerRedirector.class).warn("HTTPLoadBalancerRedirector.doServerControl: Invalid key from " + req.getRemoteAddr());
+			return "error=invalid key";
+		}
+		if (this.redirector == null) {
+			resp.setResponseCode(503);
+			return "error=redirector not found";
+		}
+
+		boolean result;
+		try {
+			if (req.getParameter("drain") != null) {
+				String time = req.getParameter("time");
+				result = this.redirector.drainServer(req.getParameter("drain").trim(), time == null ? 0 : Integer.parseInt(time.trim()));
+			}
+			else if (req.getParameter("undrain") != null) {
+				result = this.redirector.undrainServer(req.getParameter("undrain").trim());
+			}
+			else {
+				String serverId = req.getParameter("serverId");
+				result = serverId != null && this.redirector.setServerWeight(serverId.trim(), Integer.parseInt(req.getParameter("weight").trim()));
+			}
+		} catch (NumberFormatException e) {
+			result = false;
+		}
+
+		if (!result) {
+			resp.setResponseCode(400);
+			return "error=unknown server or invalid value";
+		}
+		return "result=ok";
+	}
+
+	/**
+	 * Set the client from the "clientId" and "clientIp" query parameters. The HTTPProvider is called by portals
+	 * and ad services on behalf of their viewers, so the requester's own address says nothing about the client.
+	 * @param request
+	 * @param req
+	 */
+	private void setClient(LoadBalancerRedirectRequest request, IHTTPRequest req) {
+		String clientId = req.getParameter("clientId");
+		String clientIp = req.getParameter("clientIp");
+		request.setClient(clientIp != null && clientIp.length() > 0 ? clientIp : null, clientId != null && clientId.length() > 0 ? clientId : null);
+	}
+
+	/**
+	 * Answer a rejected redirect with "503 Service Unavailable", since there are servers that could take the client
+	 * later. With no servers at all, the response is left as "redirect=unknown" with 200 OK.
+	 * @param resp
+	 * @param e
+	 */
+	private void setRejected(IHTTPResponse resp, LoadBalancerRejectedException e) {
+		if (e.getReason() == LoadBalancerRejectedException.REASON_NOSERVERS) {
+			return;
+		}
+		resp.setResponseCode(503);
+		if (e.getReason() == LoadBalancerRejectedException.REASON_RETRYLATER) {
+			resp.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+		}
+	}
+
+	/**
+	 * Hand out "count" redirects at once, with one "redirect=" line per redirect
+	 * @param vhostName
+	 * @param req
+	 * @param resp
+	 * @return
+	 */
+	private String getRedirects(String vhostName, IHTTPRequest req, IHTTPResponse resp) {
+		int count = 0;
+		try {
+			count = Integer.parseInt(req.getParameter("count").trim());
+		} catch (NumberFormatException e) {
+		}
+		if (count < 1 || count > LoadBalancerRedirectorBandwidth.MAX_BATCHREDIRECTS) {
+			resp.setResponseCode(400);
+			return "error=count must be between 1 and " + LoadBalancerRedirectorBandwidth.MAX_BATCHREDIRECTS;
+		}
+		if (this.redirector == null) {
+			return "redirect=unknown";
+		}
+
+		LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(vhostName);
+		setClient(request, req);
+		request.setRequiredCapabilities(LoadBalancerCapabilities.parse(req.getParameter("capabilities")));
+		List<LoadBalancerRedirect> redirects = null;
+		try {
+			redirects = this.redirector.requestRedirects(request, count);
+		} catch (LoadBalancerRejectedException e) {
+			setRejected(resp, e);
+			WMSLoggerFactory.getLogger(HTTPLoadBalancerRedirector.class).debug("HTTPLoadBalancerRedirector.getRedirects: " + e.getMessage());
+			return "redirect=unknown";
+		}
+
+		StringBuffer ret = new StringBuffer();
+		for (int i = 0; i < redirects.size(); i++) {
+			ret.append("redirect=").append(redirects.get(i).getHost()).append("\n");
+		}
+		return ret.toString();
+	}
 }
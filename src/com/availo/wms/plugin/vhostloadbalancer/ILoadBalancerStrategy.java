@@ -0,0 +1,51 @@
+/**
+ * ILoadBalancerStrategy.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Selection strategy used by LoadBalancerRedirectorBandwidth to pick a server from a vhost pool.
+ * 
+ * All strategies share the same server table and per-vhost address resolution. The strategy only decides
+ * which server in the pool gets the next redirect, and getRedirect() takes care of the accounting.
+ * Strategies are shared by all threads calling getRedirect(), and must be thread safe.
+ * 
+ * The strategy is chosen with the "loadBalancerListenerRedirectorStrategy" property in Server.xml.
+ */
+public interface ILoadBalancerStrategy {
+
+	/**
+	 * Called once every time a pool is built. The returned object is kept in the pool, and can be used by
+	 * strategies that need to remember something between redirects, like round robin.
+	 * @param pool
+	 * @return Per-pool state, or null if the strategy is stateless
+	 */
+	public Object createPoolState(VHostPool pool);
+
+	/**
+	 * Select the server that should receive the next redirect.
+	 * 
+	 * Only the servers listed in candidates may be selected. Servers that are filtered out by the redirector
+	 * (for example because they are above their capacity threshold) are not in this list.
+	 * @param pool Pool with at least one server
+	 * @param candidates Indexes in pool.servers, in ascending order
+	 * @param count Number of valid entries in candidates (at least one)
+	 * @return Index in pool.servers, or -1 if no server could be selected
+	 */
+	public int select(VHostPool pool, int[] candidates, int count);
+}
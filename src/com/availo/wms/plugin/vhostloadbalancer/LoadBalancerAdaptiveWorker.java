@@ -0,0 +1,138 @@
+/**
+ * LoadBalancerAdaptiveWorker.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import com.wowza.util.IOPerformanceCounter;
+import com.wowza.wms.logging.WMSLoggerFactory;
+import com.wowza.wms.plugin.loadbalancer.LoadBalancerSender;
+import com.wowza.wms.server.ConnectionCounter;
+import com.wowza.wms.server.Server;
+
+/**
+ * Replacement for LoadBalancerWorker that sends a status message as soon as the load changes, instead of at a fixed interval.
+ * 
+ * The connection count and outgoing bandwidth are checked every checkInterval. A message is sent when either has
+ * changed more than changeThreshold percent since the last message, but never more often than every minInterval.
+ * When the load is stable, a message is still sent every keepaliveInterval, which must be well below the
+ * message timeout on the listener ("loadBalancerListenerMessageTimeout", 5000 ms by default).
+ */
+public class LoadBalancerAdaptiveWorker extends Thread {
+	/**
+	 * Changes smaller than these are ignored, so an almost idle server doesn't send a message for every new connection
+	 */
+	public static final long MIN_CONNECTCOUNT_CHANGE = 5;
+	public static final long MIN_OUTRATE_CHANGE = 1000000;
+
+	private final LoadBalancerSender loadBalancerSender;
+	private volatile boolean running = true;
+
+	private int checkInterval = 250;
+	private int minInterval = 500;
+	private int keepaliveInterval = 2000;
+	private int changeThreshold = 10;
+
+	/**
+	 * The load in the last message
+	 */
+	private long lastConnectCount = 0;
+	private long lastOutRate = 0;
+	private long lastSent = 0;
+
+	public LoadBalancerAdaptiveWorker(LoadBalancerSender loadBalancerSender) {
+		this.loadBalancerSender = loadBalancerSender;
+	}
+
+	/**
+	 * @param checkInterval How often (in milliseconds) to check the load
+	 */
+	public void setCheckInterval(int checkInterval) {
+		this.checkInterval = Math.max(checkInterval, 10);
+	}
+
+	/**
+	 * @param minInterval Minimum time (in milliseconds) between two messages
+	 */
+	public void setMinInterval(int minInterval) {
+		this.minInterval = Math.max(minInterval, 0);
+	}
+
+	/**
+	 * @param keepaliveInterval Maximum time (in milliseconds) between two messages
+	 */
+	public void setKeepaliveInterval(int keepaliveInterval) {
+		this.keepaliveInterval = Math.max(keepaliveInterval, 100);
+	}
+
+	/**
+	 * @param changeThreshold Change in connections or outgoing bandwidth (in percent) that sends a message right away
+	 */
+	public void setChangeThreshold(int changeThreshold) {
+		this.changeThreshold = Math.max(changeThreshold, 0);
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				long now = System.currentTimeMillis();
+				Server server = Server.getInstance();
+				ConnectionCounter connectionCounter = server.getConnectionCounter();
+				IOPerformanceCounter ioPerformance = server.getIoPerformanceCounter();
+				long connectCount = connectionCounter != null ? connectionCounter.getCurrent() : 0;
+				long outRate = ioPerformance != null ? (long)(ioPerformance.getMessagesOutBytesRate() * 8) : 0;
+
+				long sinceLastSent = now - lastSent;
+				// Send the keepalive one check early, rather than up to checkInterval late
+				if (sinceLastSent + checkInterval >= keepaliveInterval || (sinceLastSent >= minInterval && (hasChanged(lastConnectCount, connectCount, MIN_CONNECTCOUNT_CHANGE) || hasChanged(lastOutRate, outRate, MIN_OUTRATE_CHANGE)))) {
+					loadBalancerSender.run();
+					lastConnectCount = connectCount;
+					lastOutRate = outRate;
+					lastSent = now;
+				}
+			}
+			catch (Exception e) {
+				WMSLoggerFactory.getLogger(LoadBalancerAdaptiveWorker.class).error("LoadBalancerAdaptiveWorker.run: " + e.toString());
+			}
+
+			try {
+				Thread.sleep(checkInterval);
+			}
+			catch (InterruptedException e) {
+				// Woken up by quit()
+			}
+		}
+	}
+
+	/**
+	 * @param last The value in the last message
+	 * @param current
+	 * @param minChange
+	 * @return true if the value has changed more than changeThreshold percent (and at least minChange)
+	 */
+	private boolean hasChanged(long last, long current, long minChange) {
+		long change = Math.abs(current - last);
+		return change >= minChange && change * 100 > (long)changeThreshold * last;
+	}
+
+	/**
+	 * Stop sending messages
+	 */
+	public void quit() {
+		running = false;
+		interrupt();
+	}
+}
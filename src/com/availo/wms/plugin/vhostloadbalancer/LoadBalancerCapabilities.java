@@ -0,0 +1,103 @@
+/**
+ * LoadBalancerCapabilities.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+/**
+ * Capability tags that senders publish for their server, and that clients may require from the server they are
+ * redirected to.
+ * 
+ * The tags are compiled into a bitmask when a status message arrives, so checking a server only takes a single AND.
+ * Servers with senders that don't publish any tags are assumed to support everything.
+ */
+public class LoadBalancerCapabilities {
+	public static final int NONE = 0;
+	public static final int RTMP = 1;
+	public static final int HLS = 1 << 1;
+	public static final int HDS = 1 << 2;
+	public static final int RTSP = 1 << 3;
+	public static final int DVR = 1 << 4;
+	public static final int TRANSCODER = 1 << 5;
+	public static final int HTTPS = 1 << 6;
+	public static final int ALL = -1;
+
+	/**
+	 * Tag names, indexed by bit number
+	 */
+	private static final String[] NAMES = { "rtmp", "hls", "hds", "rtsp", "dvr", "transcoder", "https" };
+
+	private LoadBalancerCapabilities() {
+	}
+
+	/**
+	 * @param name
+	 * @return The bit for a tag, or NONE if the tag is unknown
+	 */
+	public static int forName(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name)) {
+				return 1 << i;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Parse a comma separated list of tags. Unknown tags are skipped, so newer senders can publish tags this
+	 * listener doesn't know about yet.
+	 * @param tags
+	 * @return The bitmask for the known tags
+	 */
+	public static int parse(String tags) {
+		int mask = NONE;
+		if (tags == null) {
+			return mask;
+		}
+		String[] names = tags.split(",");
+		for (int i = 0; i < names.length; i++) {
+			mask |= forName(names[i].trim());
+		}
+		return mask;
+	}
+
+	/**
+	 * @param mask
+	 * @return true if every capability in required is in mask
+	 */
+	public static boolean hasAll(int mask, int required) {
+		return (mask & required) == required;
+	}
+
+	/**
+	 * @param mask
+	 * @return The tags in a bitmask, as a comma separated list
+	 */
+	public static String toString(int mask) {
+		if (mask == ALL) {
+			return "all";
+		}
+		StringBuffer ret = new StringBuffer();
+		for (int i = 0; i < NAMES.length; i++) {
+			if ((mask & (1 << i)) != 0) {
+				if (ret.length() > 0) {
+					ret.append(",");
+				}
+				ret.append(NAMES[i]);
+			}
+		}
+		return ret.toString();
+	}
+}
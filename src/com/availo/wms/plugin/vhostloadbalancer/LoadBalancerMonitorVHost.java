@@ -19,16 +19,21 @@
 
 package com.availo.wms.plugin.vhostloadbalancer;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.wowza.util.IOPerformanceCounter;
+import com.wowza.wms.application.IApplication;
 import com.wowza.wms.application.WMSProperties;
 import com.wowza.wms.logging.WMSLoggerFactory;
 //import com.wowza.wms.logging.*;
 import com.wowza.wms.plugin.loadbalancer.*;
+import com.wowza.wms.client.IClient;
 import com.wowza.wms.vhost.IVHost;
+import com.wowza.wms.vhost.IVHostNotify;
 import com.wowza.wms.vhost.VHostSingleton;
 import com.wowza.wms.vhost.HostPort;
 import com.wowza.wms.vhost.HostPortList;
@@ -49,25 +54,298 @@ import org.json.simple.JSONObject;
  *
  */
 public class LoadBalancerMonitorVHost extends LoadBalancerMonitorDefault {
+	/**
+	 * 64-bit versions of MSGFIELDS_INRATE and MSGFIELDS_OUTRATE, which overflow on busy 10G+ servers.
+	 * Listeners without support for these fields will just ignore them.
+	 */
+	public static final String MSGFIELDS_INRATE64 = "inRate64";
+	public static final String MSGFIELDS_OUTRATE64 = "outRate64";
+
+	/**
+	 * Per-vhost load, as JSON with the VHOSTFIELDS_CONNECTCOUNT, VHOSTFIELDS_OUTRATE and VHOSTFIELDS_STREAMS fields
+	 * per vhost. Kept out of customProperties, which then only changes when the configuration does, so the listener
+	 * doesn't have to parse it for every message.
+	 */
+	public static final String MSGFIELDS_VHOSTLOADS = "vhostLoads";
+
+	/**
+	 * Binary replacement for MSGFIELDS_INRATE64, MSGFIELDS_OUTRATE64 and MSGFIELDS_VHOSTLOADS, as base64.
+	 * Listeners that don't know this field (or its version) use the 32-bit rates from the default monitor instead.
+	 */
+	public static final String MSGFIELDS_BINARYSTATUS = "binaryStatus";
+
+	/**
+	 * Layout of MSGFIELDS_BINARYSTATUS, version 1 (big-endian):
+	 * byte version, long inRate, long outRate, unsigned short number of vhosts, and for every vhost:
+	 * string name (unsigned short length and UTF-8), int connectCount, long outRate, and unsigned short number of
+	 * StreamPresenceFilter words followed by the words (0 without stream presence). Missing numbers are -1.
+	 */
+	public static final int BINARYSTATUS_VERSION = 1;
+
+	/**
+	 * Version of the customProperties, increased every time they change. Senders with "loadBalancerSenderConfigDelta"
+	 * only send customProperties when they change, and every "loadBalancerSenderConfigResyncInterval" seconds, and the
+	 * listener uses the last customProperties it got with the same version in between.
+	 */
+	public static final String MSGFIELDS_CONFIGVERSION = "configVersion";
+
+	/**
+	 * Per-vhost fields. The weight and tier are sent inside customProperties.vhosts, and the load inside
+	 * MSGFIELDS_VHOSTLOADS. The rates are in bits per second.
+	 */
+	public static final String VHOSTFIELDS_WEIGHT = "weight";
+	public static final String VHOSTFIELDS_CONNECTCOUNT = "connectCount";
+	public static final String VHOSTFIELDS_OUTRATE = "outRate";
+	public static final String VHOSTFIELDS_TIER = "tier";
+	/**
+	 * StreamPresenceFilter with the streams published on the vhost, as base64
+	 */
+	public static final String VHOSTFIELDS_STREAMS = "streams";
+
+	/**
+	 * Reused for every binary status message. appendToMessage() is only called by the sender thread.
+	 */
+	private final BinaryStatusBuffer statusBuffer = new BinaryStatusBuffer(1024);
+
+	/**
+	 * The last customProperties, their version and when they were last sent. Only used by the sender thread.
+	 */
+	private String lastCustomProperties = null;
+	private long configVersion = 0;
+	private long lastConfigSent = 0;
+
+	/**
+	 * The vhosts and their properties, as found by discoverVHosts()
+	 */
+	static class VHostDiscovery {
+		final IVHost[] vhosts;
+		final String[] vhostNames;
+		final Map<String, Object> vhostProperties;
+		final long created;
+
+		VHostDiscovery(IVHost[] vhosts, String[] vhostNames, Map<String, Object> vhostProperties, long created) {
+			this.vhosts = vhosts;
+			this.vhostNames = vhostNames;
+			this.vhostProperties = vhostProperties;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Throws away the cached vhosts when a vhost is started or stopped
+	 */
+	class VHostListener implements IVHostNotify {
+		public void onVHostCreate(IVHost vhost) {
+		}
+
+		public void onVHostInit(IVHost vhost) {
+			vhostDiscovery = null;
+		}
+
+		public void onVHostShutdownStart(IVHost vhost) {
+		}
+
+		public void onVHostShutdownComplete(String vhostName) {
+			vhostDiscovery = null;
+		}
+
+		public void onVHostClientConnect(IVHost vhost, IClient inClient) {
+		}
+	}
+
+	/**
+	 * The cached vhosts, replaced after "loadBalancerSenderVHostCacheTime" seconds, or when a vhost is started or stopped
+	 */
+	private volatile VHostDiscovery vhostDiscovery = null;
+	private boolean vhostListenerAdded = false;
+
+	/**
+	 * What lastCustomProperties was built from, so it's only serialized again when something has changed
+	 */
+	private VHostDiscovery customPropertiesDiscovery = null;
+	private String customPropertiesSettings = null;
+
 	public void appendToMessage(LoadBalancerSender loadBalancerSender, StringBuffer message) {
 		boolean isDebugLog = WMSLoggerFactory.getLogger(LoadBalancerMonitorVHost.class).isDebugEnabled();
 		super.appendToMessage(loadBalancerSender, message);
 
+		// Send the rates and the per-vhost load in a single binary field, instead of as text
+		boolean binaryStatus = Server.getInstance().getProperties().getPropertyBoolean("loadBalancerSenderBinaryStatus", false);
+
+		// The default monitor sends the rates as 32-bit integers. Send the same counters (in bits per second) as 64-bit values as well.
+		IOPerformanceCounter ioPerformance = Server.getInstance().getIoPerformanceCounter();
+		long inRate = ioPerformance != null ? (long)(ioPerformance.getMessagesInBytesRate() * 8) : -1;
+		long outRate = ioPerformance != null ? (long)(ioPerformance.getMessagesOutBytesRate() * 8) : -1;
+		if (ioPerformance != null && !binaryStatus) {
+			message.append(MSGFIELDS_INRATE64 + ":" + inRate + "\n");
+			message.append(MSGFIELDS_OUTRATE64 + ":" + outRate + "\n");
+		}
+
 		// First find the global variables per server, in addition to the options handled by the original LoadBalancer module.
 		Server server = Server.getInstance();
 		WMSProperties props = server.getProperties();
 		Integer serverWeight = props.getPropertyInt("loadBalancerSenderServerWeight", 1);
-		// Store it in a HashMap for the time being, and then add it to the JSON object later on
-		Map<String, Object> vhostProperties = new HashMap<String, Object>();
+		// Absolute egress capacity in bits per second. 0 means unknown, and will disable capacity checks for this server on the listener.
+		long serverCapacity = props.getPropertyLong("loadBalancerSenderServerCapacity", 0);
+		// Edge group (PoP or ISP) used by the listener to send clients to an edge close to them
+		String serverGroup = props.getPropertyStr("loadBalancerSenderServerGroup", null);
+		// Spillover tier. Servers in tier 0 are filled first, and higher tiers only get the overflow.
+		int serverTier = props.getPropertyInt("loadBalancerSenderServerTier", 0);
+		// What this server can serve, as a comma separated list of tags (rtmp, hls, hds, rtsp, dvr, transcoder, https)
+		String serverCapabilities = props.getPropertyStr("loadBalancerSenderCapabilities", null);
+		// Maximum rate of new redirects to this server, as "rate:burst" (redirects per second, and at once)
+		String serverRedirectLimit = props.getPropertyStr("loadBalancerSenderRedirectLimit", null);
+		// Report which streams this server is serving, so the listener can send new viewers where the stream already is
+		boolean streamPresence = props.getPropertyBoolean("loadBalancerSenderStreamPresence", false);
+		// Only send customProperties when they change, and at least every resync interval (in seconds)
+		boolean configDelta = props.getPropertyBoolean("loadBalancerSenderConfigDelta", false);
+		int configResyncInterval = props.getPropertyInt("loadBalancerSenderConfigResyncInterval", 30);
+		// How long (in seconds) the vhost properties are cached, in case they are changed without restarting the vhost
+		int vhostCacheTime = props.getPropertyInt("loadBalancerSenderVHostCacheTime", 60);
 
 		// Then read the vhost properties, which will override the server defaults, if defined.
+		long now = System.currentTimeMillis();
+		VHostDiscovery discovery = vhostDiscovery;
+		if (discovery == null || now - discovery.created >= vhostCacheTime * 1000L) {
+			discovery = discoverVHosts(now);
+			vhostDiscovery = discovery;
+		}
+
+		JSONObject vhostLoads = new JSONObject();
+		for (int i = 0; i < discovery.vhosts.length; i++) {
+			IVHost vhost = discovery.vhosts[i];
+
+			// Per-vhost load, so the listener can balance each vhost on its own traffic instead of the server total
+			Map<String, Object> load = new HashMap<String, Object>();
+			if (vhost.getConnectionCounter() != null) {
+				load.put(VHOSTFIELDS_CONNECTCOUNT, vhost.getConnectionCounter().getCurrent());
+			}
+			IOPerformanceCounter vhostPerformance = vhost.getIoPerformanceCounter();
+			if (vhostPerformance != null) {
+				load.put(VHOSTFIELDS_OUTRATE, (long)(vhostPerformance.getMessagesOutBytesRate() * 8));
+			}
+			if (streamPresence) {
+				StreamPresenceFilter filter = getStreamPresence(vhost);
+				load.put(VHOSTFIELDS_STREAMS, binaryStatus ? (Object)filter : filter.encode());
+			}
+			vhostLoads.put(discovery.vhostNames[i], load);
+		}
+
+		// Only serialize the customProperties again if the vhosts or the server settings have changed
+		String serverSettings = serverWeight + "|" + serverCapacity + "|" + serverGroup + "|" + serverTier + "|" + serverCapabilities + "|" + serverRedirectLimit;
+		if (discovery != customPropertiesDiscovery || !serverSettings.equals(customPropertiesSettings)) {
+			customPropertiesDiscovery = discovery;
+			customPropertiesSettings = serverSettings;
+
+			// Even though the default message is only pseudo-JSON, we'll use proper JSON encoded values for our custom properties.
+			JSONObject customProperties = new JSONObject();
+
+			// Eclipse will throw "Type safety" warnings here due to how json-simple is written (at least that's my understanding.)
+			/*
+			 * Contains all the properties found in the respective VHost.xml files
+			 */
+			customProperties.put("vhosts", discovery.vhostProperties);
+
+			/*
+			 *  Used to define how much a server can handle compared to the other servers.
+			 *  A 10Ggbps could for example have a weight of 7, compared to a weight of 1 on an 1Gbps server.
+			 *  (Which ideally would mean that the 10Gbps would serve 7Gbps when the 1Gbps server maxed out.)
+			 */
+			customProperties.put("weight", serverWeight);
+
+			/*
+			 * Used to stop redirecting to this server when it's close to saturating its network interfaces.
+			 */
+			if (serverCapacity > 0) {
+				customProperties.put("capacity", serverCapacity);
+			}
+
+			/*
+			 * Used to prefer this server for clients in the subnets mapped to this group on the listener.
+			 */
+			if (serverGroup != null && serverGroup.length() > 0) {
+				customProperties.put("group", serverGroup);
+			}
+
+			/*
+			 * Used to only send clients to this server when the servers in the lower tiers are busy.
+			 */
+			if (serverTier > 0) {
+				customProperties.put("tier", serverTier);
+			}
+
+			/*
+			 * Used to only send clients to this server if it can serve them, for example DVR or HDS clients.
+			 * Servers without any capabilities are expected to serve everything.
+			 */
+			if (serverCapabilities != null && serverCapabilities.trim().length() > 0) {
+				customProperties.put("capabilities", serverCapabilities.trim());
+			}
+
+			/*
+			 * Used to limit how fast the listener hands out redirects to this server, since it only learns about
+			 * the new connections with the next status message.
+			 */
+			if (serverRedirectLimit != null && serverRedirectLimit.length() > 0) {
+				customProperties.put("redirectLimit", serverRedirectLimit);
+			}
+
+			String customPropertiesStr = customProperties.toJSONString();
+			if (!customPropertiesStr.equals(lastCustomProperties)) {
+				// Based on the clock, so the version keeps increasing when the sender is restarted
+				configVersion = Math.max(configVersion + 1, now);
+				lastCustomProperties = customPropertiesStr;
+				lastConfigSent = 0;
+			}
+			if (isDebugLog) {
+				WMSLoggerFactory.getLogger(LoadBalancerMonitorVHost.class).debug("LoadBalancerMonitorVHost.appendToMessage: Properties: " + customPropertiesStr);
+			}
+		}
+
+		/*
+		 * We'll use this to know where to redirect users, based on what vhost address they connect to on the load balancer.
+		 */
+		message.append(MSGFIELDS_CONFIGVERSION + ":" + configVersion + "\n");
+		if (!configDelta || now - lastConfigSent >= configResyncInterval * 1000L) {
+			message.append("customProperties:" + lastCustomProperties + "\n");
+			lastConfigSent = now;
+		}
+		if (binaryStatus) {
+			message.append(MSGFIELDS_BINARYSTATUS + ":");
+			appendBinaryStatus(inRate, outRate, vhostLoads, message);
+			message.append("\n");
+		}
+		else {
+			message.append(MSGFIELDS_VHOSTLOADS + ":" + vhostLoads + "\n");
+		}
+	}
+
+	/**
+	 * Find the vhosts and read their properties
+	 * @param now
+	 * @return
+	 */
+	private VHostDiscovery discoverVHosts(long now) {
+		if (!vhostListenerAdded) {
+			// Added here, since the monitor is created by the sender before the vhosts are
+			VHostSingleton.addVHostListener(new VHostListener());
+			vhostListenerAdded = true;
+		}
+
 		List<?> vhostNames = VHostSingleton.getVHostNames();
+		List<IVHost> vhosts = new ArrayList<IVHost>();
+		List<String> names = new ArrayList<String>();
+		// Store it in a HashMap for the time being, and then add it to the JSON object later on
+		Map<String, Object> vhostProperties = new HashMap<String, Object>();
 		Iterator<?> vhostIterator = vhostNames.iterator();
 		while (vhostIterator.hasNext()) {
 			String vhostName = (String) vhostIterator.next();
 			// Uncomment if you need even more debug output. This will produce way too much output, even for regular debugging.
-			//WMSLoggerFactory.getLogger(LoadBalancerMonitorVhost.class).debug("LoadBalancerMonitorVHost.appendToMessage: VHost:\t" + vhostName);
+			//WMSLoggerFactory.getLogger(LoadBalancerMonitorVhost.class).debug("LoadBalancerMonitorVHost.discoverVHosts: VHost:\t" + vhostName);
 			IVHost vhost = (IVHost)VHostSingleton.getInstance(vhostName);
+			if (vhost == null) {
+				continue;
+			}
 			WMSProperties vhostprops = vhost.getProperties();
 
 			String vhostRedirectAddress = vhostprops.getPropertyStr("loadBalancerVhostRedirectAddress", null);
@@ -81,41 +359,101 @@ public class LoadBalancerMonitorVHost extends LoadBalancerMonitorDefault {
 					}
 					/*if (isDebugLog) {
 						// This is just *too* much spam.
-						//WMSLoggerFactory.getLogger(LoadBalancerMonitorVhost.class).debug("LoadBalancerMonitorVHost.appendToMessage: hostport debug: " + hostPort.getAddressStr() + ":" + hostPort.getPort());
+						//WMSLoggerFactory.getLogger(LoadBalancerMonitorVhost.class).debug("LoadBalancerMonitorVHost.discoverVHosts: hostport debug: " + hostPort.getAddressStr() + ":" + hostPort.getPort());
 					}*/
 				}
 			}
-			Map<String, String> map = new HashMap<String, String>();
+			Map<String, Object> map = new HashMap<String, Object>();
 			map.put("redirectAddress", vhostRedirectAddress);
-			// Disabled, since the benefits of adding a vhost-specific weight doesn't seem to outweigh (no pun intended) the added complexity.
-			/*String vhostWeight = vhostprops.getPropertyStr("loadBalancerVhostWeight", null);
-			map.put("weight", vhostWeight);*/
+			// Share of this server that the vhost should get, relative to the same vhost on the other servers. Defaults to the server weight.
+			int vhostWeight = vhostprops.getPropertyInt("loadBalancerVhostWeight", 0);
+			if (vhostWeight > 0) {
+				map.put(VHOSTFIELDS_WEIGHT, vhostWeight);
+			}
+			// Spillover tier for this vhost only. Defaults to the server tier.
+			int vhostTier = vhostprops.getPropertyInt("loadBalancerVhostTier", -1);
+			if (vhostTier >= 0) {
+				map.put(VHOSTFIELDS_TIER, vhostTier);
+			}
 			vhostProperties.put(vhostName, map);
+			vhosts.add(vhost);
+			names.add(vhostName);
 		}
+		return new VHostDiscovery(vhosts.toArray(new IVHost[vhosts.size()]), names.toArray(new String[names.size()]), vhostProperties, now);
+	}
 
-		// Even though the default message is only pseudo-JSON, we'll use proper JSON encoded values for our custom properties.
-		JSONObject customProperties = new JSONObject();
-
-		// Eclipse will throw "Type safety" warnings here due to how json-simple is written (at least that's my understanding.)
-		/*
-		 * Contains all the properties found in the respective VHost.xml files
-		 */
-		customProperties.put("vhosts", vhostProperties);
-
-		/*
-		 *  Used to define how much a server can handle compared to the other servers.
-		 *  A 10Ggbps could for example have a weight of 7, compared to a weight of 1 on an 1Gbps server.
-		 *  (Which ideally would mean that the 10Gbps would serve 7Gbps when the 1Gbps server maxed out.)
-		 */
-		customProperties.put("weight", serverWeight);
+	/**
+	 * Encode the rates and the per-vhost load as described in BINARYSTATUS_VERSION
+	 * @param inRate
+	 * @param outRate
+	 * @param vhostLoads The load per vhost, with a StreamPresenceFilter (not encoded) for VHOSTFIELDS_STREAMS
+	 * @param message
+	 */
+	private void appendBinaryStatus(long inRate, long outRate, Map<String, Object> vhostLoads, StringBuffer message) {
+		statusBuffer.clear();
+		statusBuffer.putByte(BINARYSTATUS_VERSION);
+		statusBuffer.putLong(inRate);
+		statusBuffer.putLong(outRate);
+		statusBuffer.putShort(Math.min(vhostLoads.size(), 0xFFFF));
+		Iterator<Map.Entry<String, Object>> iter = vhostLoads.entrySet().iterator();
+		for (int i = 0; iter.hasNext() && i < 0xFFFF; i++) {
+			Map.Entry<String, Object> entry = iter.next();
+			Map<String, Object> load = (Map<String, Object>)entry.getValue();
+			Object connectCount = load.get(VHOSTFIELDS_CONNECTCOUNT);
+			Object vhostOutRate = load.get(VHOSTFIELDS_OUTRATE);
+			StreamPresenceFilter filter = (StreamPresenceFilter)load.get(VHOSTFIELDS_STREAMS);
+			statusBuffer.putString(entry.getKey());
+			statusBuffer.putInt(connectCount instanceof Number ? ((Number)connectCount).intValue() : -1);
+			statusBuffer.putLong(vhostOutRate instanceof Number ? ((Number)vhostOutRate).longValue() : -1);
+			long[] bits = filter != null ? filter.getBits() : new long[0];
+			statusBuffer.putShort(bits.length);
+			for (int j = 0; j < bits.length; j++) {
+				statusBuffer.putLong(bits[j]);
+			}
+		}
+		statusBuffer.appendBase64(message);
+	}
 
-		/*
-		 * We'll use this to know where to redirect users, based on what vhost address they connect to on the load balancer.
-		 */
-		message.append("customProperties:" + customProperties + "\n");
+	/**
+	 * Collect the streams published in all loaded application instances on a vhost.
+	 * 
+	 * Only applications that are already loaded are checked, since getApplication() would load the others.
+	 * @param vhost
+	 * @return
+	 */
+	private StreamPresenceFilter getStreamPresence(IVHost vhost) {
+		List<String> appNames = new ArrayList<String>();
+		List<List<String>> streamNames = new ArrayList<List<String>>();
+		int count = 0;
+		List<String> vhostAppNames = vhost.getApplicationNames();
+		for (int i = 0; vhostAppNames != null && i < vhostAppNames.size(); i++) {
+			String appName = vhostAppNames.get(i);
+			if (!vhost.isApplicationLoaded(appName)) {
+				continue;
+			}
+			IApplication application = vhost.getApplication(appName);
+			List<String> appInstanceNames = application.getAppInstanceNames();
+			for (int j = 0; appInstanceNames != null && j < appInstanceNames.size(); j++) {
+				if (!application.isAppInstanceLoaded(appInstanceNames.get(j))) {
+					continue;
+				}
+				List<String> publishStreamNames = application.getAppInstance(appInstanceNames.get(j)).getPublishStreamNames();
+				if (publishStreamNames != null && !publishStreamNames.isEmpty()) {
+					appNames.add(appName);
+					streamNames.add(publishStreamNames);
+					count += publishStreamNames.size();
+				}
+			}
+		}
 
-		if (isDebugLog) {
-			WMSLoggerFactory.getLogger(LoadBalancerMonitorVHost.class).debug("LoadBalancerMonitorVHost.appendToMessage: Properties: " + customProperties);
+		// Size the filter after the number of streams, so a few streams give a short message
+		StreamPresenceFilter filter = new StreamPresenceFilter(count);
+		for (int i = 0; i < appNames.size(); i++) {
+			List<String> publishStreamNames = streamNames.get(i);
+			for (int j = 0; j < publishStreamNames.size(); j++) {
+				filter.add(appNames.get(i), publishStreamNames.get(j));
+			}
 		}
+		return filter;
 	}
 }
@@ -0,0 +1,128 @@
+/**
+ * LoadBalancerRedirectRequest.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+/**
+ * Everything the redirector may use to pick a server for a new client.
+ * 
+ * Only the vhost name is required. The other fields are optional, and are used by the routing modes
+ * that need them (for example stream affinity), when they are enabled.
+ */
+public class LoadBalancerRedirectRequest {
+	private String vhostName = null;
+	private String appName = null;
+	private String streamName = null;
+	private String clientId = null;
+	private String clientIp = null;
+	private int requiredCapabilities = LoadBalancerCapabilities.NONE;
+
+	public LoadBalancerRedirectRequest(String vhostName) {
+		this.vhostName = vhostName;
+	}
+
+	public LoadBalancerRedirectRequest(String vhostName, String appName, String streamName) {
+		this.vhostName = vhostName;
+		this.appName = appName;
+		this.streamName = streamName;
+	}
+
+	public String getVHostName() {
+		return vhostName;
+	}
+
+	public String getAppName() {
+		return appName;
+	}
+
+	public void setAppName(String appName) {
+		this.appName = appName;
+	}
+
+	public String getStreamName() {
+		return streamName;
+	}
+
+	public void setStreamName(String streamName) {
+		this.streamName = streamName;
+	}
+
+	/**
+	 * @return The client's IP address or player token
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+	public String getClientIp() {
+		return clientIp;
+	}
+
+	public void setClientIp(String clientIp) {
+		this.clientIp = clientIp;
+	}
+
+	/**
+	 * @return The capabilities (a LoadBalancerCapabilities bitmask) the server must have to serve this client
+	 */
+	public int getRequiredCapabilities() {
+		return requiredCapabilities;
+	}
+
+	public void setRequiredCapabilities(int requiredCapabilities) {
+		this.requiredCapabilities = requiredCapabilities;
+	}
+
+	/**
+	 * Set both the client's IP address and its identity for client affinity
+	 * @param clientIp
+	 * @param clientId
+	 */
+	public void setClient(String clientIp, String clientId) {
+		this.clientIp = clientIp;
+		this.clientId = clientId;
+	}
+
+	/**
+	 * Key used to send a returning client back to the server it got last time
+	 * @return The key, or null if the client is unknown
+	 */
+	public String getClientKey() {
+		if (clientId == null || clientId.length() == 0) {
+			return null;
+		}
+		return vhostName + "/" + clientId;
+	}
+
+	/**
+	 * Key used to send all viewers of the same stream to the same servers
+	 * @return The key, or null if the stream is unknown
+	 */
+	public String getStreamKey() {
+		if (streamName == null || streamName.length() == 0) {
+			return null;
+		}
+		return vhostName + "/" + appName + "/" + streamName;
+	}
+
+	public String toString() {
+		return "vhost '" + vhostName + "'" + (streamName != null ? " (" + appName + "/" + streamName + ")" : "");
+	}
+}
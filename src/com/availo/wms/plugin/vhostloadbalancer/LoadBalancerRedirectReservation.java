@@ -0,0 +1,137 @@
+/**
+ * LoadBalancerRedirectReservation.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.wowza.wms.plugin.loadbalancer.LoadBalancerRedirect;
+
+/**
+ * A redirect that has been counted against a server, but may still fail before the client is actually sent there.
+ * 
+ * The redirect counts as load on the server from the moment it is reserved, so concurrent redirects see it.
+ * The caller should confirm() it once the client has been redirected, or release() it if the redirect failed,
+ * which removes it from the server's pending redirects again and gives back its redirect tokens. A reservation
+ * that is neither confirmed nor released counts as load like a confirmed one, and ages out with the next status
+ * messages like any other redirect. Client affinity is only stored on confirm().
+ */
+public class LoadBalancerRedirectReservation {
+	private static final int STATE_RESERVED = 0;
+	private static final int STATE_CONFIRMED = 1;
+	private static final int STATE_RELEASED = 2;
+
+	private final LoadBalancerRedirectorBandwidth redirector;
+	private final ServerHolder serverHolder;
+	private final LoadBalancerRedirect redirect;
+	private final AtomicInteger state = new AtomicInteger(STATE_RESERVED);
+
+	/**
+	 * The rate limits the redirect took a token from, or null
+	 */
+	private RedirectRateLimit vhostLimit = null;
+	private AtomicLong vhostBucket = null;
+	private RedirectRateLimit serverLimit = null;
+	private AtomicLong serverBucket = null;
+
+	/**
+	 * Where to remember the server for the client on confirm(), or null
+	 */
+	private ClientAffinityCache affinity = null;
+	private String clientKey = null;
+
+	LoadBalancerRedirectReservation(LoadBalancerRedirectorBandwidth redirector, ServerHolder serverHolder, String host) {
+		this.redirector = redirector;
+		this.serverHolder = serverHolder;
+		this.redirect = new LoadBalancerRedirect(host);
+	}
+
+	/**
+	 * Remember the tokens taken for this redirect, so release() can give them back
+	 * @param vhostLimit
+	 * @param vhostBucket
+	 * @param serverLimit
+	 * @param serverBucket
+	 */
+	void setTokens(RedirectRateLimit vhostLimit, AtomicLong vhostBucket, RedirectRateLimit serverLimit, AtomicLong serverBucket) {
+		this.vhostLimit = vhostLimit;
+		this.vhostBucket = vhostBucket;
+		this.serverLimit = serverLimit;
+		this.serverBucket = serverBucket;
+	}
+
+	public LoadBalancerRedirect getRedirect() {
+		return redirect;
+	}
+
+	public String getHost() {
+		return redirect.getHost();
+	}
+
+	public String getServerId() {
+		return serverHolder.serverId;
+	}
+
+	/**
+	 * Remember the server for this client once the redirect is confirmed
+	 * @param affinity
+	 * @param clientKey
+	 */
+	void setClientAffinity(ClientAffinityCache affinity, String clientKey) {
+		this.affinity = affinity;
+		this.clientKey = clientKey;
+	}
+
+	/**
+	 * The client has been sent to the server. Does nothing if the reservation was already confirmed or released.
+	 */
+	public void confirm() {
+		if (state.compareAndSet(STATE_RESERVED, STATE_CONFIRMED) && clientKey != null) {
+			affinity.put(clientKey, serverHolder.serverId);
+		}
+	}
+
+	/**
+	 * The redirect failed, and the client will not connect to the server. Does nothing if the reservation was
+	 * already confirmed or released, so it is safe to call from a finally block.
+	 */
+	public void release() {
+		if (state.compareAndSet(STATE_RESERVED, STATE_RELEASED)) {
+			redirector.releaseRedirect(serverHolder);
+			if (vhostLimit != null) {
+				vhostLimit.release(vhostBucket);
+			}
+			if (serverLimit != null) {
+				serverLimit.release(serverBucket);
+			}
+		}
+	}
+
+	public boolean isConfirmed() {
+		return state.get() == STATE_CONFIRMED;
+	}
+
+	public boolean isReleased() {
+		return state.get() == STATE_RELEASED;
+	}
+
+	public String toString() {
+		return "reservation for '" + serverHolder.serverId + "' (" + redirect.getHost() + ")";
+	}
+}
@@ -19,7 +19,11 @@
 
 package com.availo.wms.plugin.vhostloadbalancer;
 
+import java.nio.BufferUnderflowException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.wowza.wms.plugin.loadbalancer.*;
 
@@ -40,20 +44,290 @@ import org.json.simple.JSONValue;
 public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector {
 	public static final String PROP_LOADBALANCERREDIRECTOR = "LoadBalancerRedirectorBandwidth";
 
-	class ServerHolder implements Comparable<ServerHolder> {
-		int redirectCount = 0;
-		int connectCount = 0;
-		int status = LoadBalancerServer.STATUS_UNKNOWN;
-		String serverId = null;
-		String redirect = null;
-		int inRate = 0;
-		int outRate = 0;
-		int weight = 1;
-		
-		Map<String, Object> vhosts = null;
+	/**
+	 * Default expected outRate per redirect, used until a server has reported both connections and outRate
+	 */
+	public static final long DEFAULT_REDIRECTRATE = 1000000;
+
+	/**
+	 * Weights are compared as fixed-point numbers with this many steps per weight unit
+	 */
+	public static final long WEIGHT_SCALE = 256;
+	
+	/**
+	 * Largest weight we'll use. Higher weights are capped, so WEIGHT_SCALE * MAX_WEIGHT * MAX_LOAD never overflows a long.
+	 */
+	public static final int MAX_WEIGHT = 32767;
+	
+	/**
+	 * Largest load (about 1.1 Tbit/s) we'll use when comparing servers. See MAX_WEIGHT.
+	 */
+	public static final long MAX_LOAD = (1L << 40) - 1;
+
+	/**
+	 * Default maximum utilization (in percent of the reported capacity) before a server stops receiving redirects
+	 */
+	public static final int DEFAULT_UTILIZATIONTHRESHOLD = 90;
+
+	/**
+	 * Default maximum load (in percent of its fair share) for a server that gets a stream through stream affinity
+	 */
+	public static final int DEFAULT_STREAMAFFINITYLOADFACTOR = 125;
+
+	/**
+	 * Default maximum load (in percent of the load of the server picked by the strategy) for a server that already has the stream
+	 */
+	public static final int DEFAULT_STREAMPRESENCELOADFACTOR = 125;
+
+	/**
+	 * Default number of clients to remember with client affinity
+	 */
+	public static final int DEFAULT_CLIENTAFFINITYSIZE = 1000000;
+
+	/**
+	 * Default number of seconds to remember a client with client affinity
+	 */
+	public static final int DEFAULT_CLIENTAFFINITYTTL = 60;
+
+	/**
+	 * Maximum number of redirects handed out in a single getRedirects() call
+	 */
+	public static final int MAX_BATCHREDIRECTS = 1000;
+
+	/**
+	 * Default weight (in percent of the full weight) for a server at the beginning of its slow start
+	 */
+	public static final int DEFAULT_SLOWSTARTINITIALWEIGHT = 10;
+
+	/**
+	 * Default utilization (in percent of the capacity of the tiers in use) at which the next spillover tier is opened
+	 */
+	public static final int DEFAULT_TIERTHRESHOLD = 80;
+
+	/**
+	 * Default number of percent below the tier threshold the utilization must drop to before a spillover tier is closed again
+	 */
+	public static final int DEFAULT_TIERHYSTERESIS = 10;
+
+	/**
+	 * Decay a server's weight linearly down to 0, so it can be taken out of the pool without moving all of its
+	 * share to the other servers at once. Once the weight reaches 0, the server gets no more redirects, but stays
+	 * in the pools (and in getInfo()) until it is undrained.
+	 */
+	static class Drain {
+		final long start;
+		final long duration;
+		/**
+		 * Set when the server has reported 0 connections after its weight reached 0
+		 */
+		volatile boolean drained = false;
+
+		Drain(long start, long duration) {
+			this.start = start;
+			this.duration = duration;
+		}
+
+		/**
+		 * @param now System.currentTimeMillis()
+		 * @return The weight to use, in percent of the full weight
+		 */
+		int getPercent(long now) {
+			if (duration <= 0 || now - start >= duration) {
+				return 0;
+			}
+			return (int)(100 - Math.max(now - start, 0) * 100 / duration);
+		}
+	}
+
+	/**
+	 * Ramp from a fraction of a server's weight up to its full weight, after it has started (or resumed) running.
+	 * 
+	 * The ramp is linear over a number of seconds, a number of status messages, or both - whichever completes first.
+	 * Immutable, so it can be replaced by the writer while getRedirect() is reading it.
+	 */
+	static class SlowStart {
+		final long start;
+		final long duration;
+		final int reports;
+		final int initialPercent;
+
+		SlowStart(long start, long duration, int reports, int initialPercent) {
+			this.start = start;
+			this.duration = duration;
+			this.reports = reports;
+			this.initialPercent = initialPercent;
+		}
+
+		/**
+		 * @param now System.currentTimeMillis()
+		 * @param reportsSeen Status messages received since the start
+		 * @return The weight to use, in percent of the full weight
+		 */
+		int getPercent(long now, int reportsSeen) {
+			long timeProgress = duration > 0 ? (now - start) * 1000 / duration : 0;
+			long reportProgress = reports > 0 ? reportsSeen * 1000L / reports : 0;
+			long progress = Math.min(Math.max(Math.max(timeProgress, reportProgress), 0), 1000);
+			return (int)(initialPercent + (100 - initialPercent) * progress / 1000);
+		}
+	}
+
+	/**
+	 * Load information for a single LoadBalancerSender.
+	 * 
+	 * The fields are updated in place by onMessage() (under the writer lock), and read without any lock by getRedirect(),
+	 * which is why they are all volatile. redirectCount is atomic, so concurrent redirects still feed the next pick.
+	 * 
+	 * redirectCount holds the redirects that haven't shown up in the reported connectCount yet. Each of them is
+	 * expected to add redirectRate to the server's outRate, so the ordering stays accurate between status messages.
+	 * 
+	 * Senders that report per-vhost load get one extra ServerHolder per vhost, with the server-wide holder as its
+	 * parent. These only hold the vhost's own weight and load figures, and are used by the pool for that vhost.
+	 * Everything else (status, redirect addresses, capacity and group) is read from the parent.
+	 */
+	public static class ServerHolder implements Comparable<ServerHolder> {
+		final AtomicInteger redirectCount = new AtomicInteger(0);
+		/**
+		 * The server-wide holder, if this holds the load for a single vhost. null for server-wide holders.
+		 */
+		final ServerHolder parent;
+		volatile int connectCount = 0;
+		volatile int status = LoadBalancerServer.STATUS_UNKNOWN;
+		final String serverId;
+		volatile String redirect = null;
+		volatile long inRate = 0;
+		volatile long outRate = 0;
+		volatile int weight = 1;
+		volatile long redirectRate = DEFAULT_REDIRECTRATE;
+		/**
+		 * Egress capacity in bits per second, as reported by the sender. 0 means unknown.
+		 */
+		volatile long capacity = 0;
+		/**
+		 * Edge group (typically a PoP or an ISP) as reported by the sender, used for subnet-aware routing. null means no group.
+		 */
+		volatile String group = null;
+		/**
+		 * Spillover tier as reported by the sender. Tier 0 is filled first, and higher tiers only get the overflow.
+		 */
+		volatile int tier = 0;
+		/**
+		 * Capabilities reported by the sender, as a LoadBalancerCapabilities bitmask. Senders that don't report any support everything.
+		 */
+		volatile int capabilities = LoadBalancerCapabilities.ALL;
+		/**
+		 * Redirect rate limit reported by the sender. null means the listener's default for all servers.
+		 */
+		volatile RedirectRateLimit redirectLimit = null;
+		/**
+		 * Token bucket for new redirects to this server (see RedirectRateLimit)
+		 */
+		final AtomicLong redirectBucket = RedirectRateLimit.newBucket();
+
+		/**
+		 * The vhosts known by the sender. Replaced (never modified) while holding the writer lock, and only when they change.
+		 */
+		volatile Map<String, VHostProperties> vhosts = null;
+
+		/**
+		 * The server's slow start, or null if it is running at its full weight. Only set on server-wide holders.
+		 */
+		volatile SlowStart slowStart = null;
+		volatile int slowStartReports = 0;
+
+		/**
+		 * The server's drain, or null if it isn't being drained. Only set on server-wide holders.
+		 */
+		volatile Drain drain = null;
+
+		/**
+		 * Weight set through the control API, overriding the weight reported by the sender. 0 means no override.
+		 */
+		volatile int weightOverride = 0;
+
+		/**
+		 * Per-vhost load for senders that report it. Replaced (never modified) while holding the writer lock.
+		 */
+		volatile Map<String, ServerHolder> vhostHolders = null;
+
+		/**
+		 * The streams on this server per vhost, for senders that report them. Replaced (never modified) while holding the writer lock.
+		 */
+		volatile Map<String, StreamPresenceFilter> streamPresence = null;
+
+		/**
+		 * This server's share of the quota figures, so it can be replaced with the next status message. Only used
+		 * while holding the lock.
+		 */
+		long quotaOutRate = 0;
+		Map<String, Long> quotaVHostLoads = null;
 
 		public ServerHolder(String serverId) {
+			this(serverId, null);
+		}
+
+		ServerHolder(String serverId, ServerHolder parent) {
 			this.serverId = serverId;
+			this.parent = parent;
+		}
+
+		/**
+		 * @return The server-wide holder for this server
+		 */
+		public ServerHolder getServer() {
+			return parent != null ? parent : this;
+		}
+
+		/**
+		 * @param vhostName
+		 * @return The holder with this server's load for a single vhost, or null if the sender doesn't report it
+		 */
+		public ServerHolder getVHostHolder(String vhostName) {
+			Map<String, ServerHolder> holders = vhostHolders;
+			return holders != null ? holders.get(vhostName) : null;
+		}
+
+		/**
+		 * Count a redirect to this server. Per-vhost redirects are counted server-wide as well.
+		 */
+		void addRedirect() {
+			redirectCount.incrementAndGet();
+			if (parent != null) {
+				parent.redirectCount.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Remove a redirect that was released before the client connected. The pending redirects may already have
+		 * been aged out by a status message, so the count never goes below 0.
+		 */
+		void removeRedirect() {
+			decrementIfPositive(redirectCount);
+			if (parent != null) {
+				decrementIfPositive(parent.redirectCount);
+			}
+		}
+
+		private static void decrementIfPositive(AtomicInteger counter) {
+			while (true) {
+				int current = counter.get();
+				if (current <= 0 || counter.compareAndSet(current, current - 1)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Store the load from a new status message, and age out the pending redirects that are now part of it
+		 * @param connectCount
+		 * @param outRate
+		 * @param defaultRedirectRate Expected outRate per redirect if there are no connections to base it on
+		 */
+		void updateLoad(int connectCount, long outRate, long defaultRedirectRate) {
+			ageRedirects(this.connectCount, connectCount);
+			// The mean outRate per connection is the best guess for what the next redirect will cost this server
+			redirectRate = (connectCount > 0 && outRate > 0) ? Math.max(outRate / connectCount, 1) : defaultRedirectRate;
+			this.connectCount = connectCount;
+			this.outRate = outRate;
 		}
 
 		/**
@@ -64,7 +338,10 @@ public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector
 		}
 		
 		/**
-		 * Get the server address we should use for the next client connection
+		 * Get the server address we should use for connections to a specific vhost.
+		 * 
+		 * This is only called when the vhost pools are rebuilt, so the warnings below are logged once per
+		 * configuration change instead of once per redirect.
 		 * @param vhostName
 		 * @return
 		 */
@@ -72,19 +349,19 @@ public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector
 			String redirectAddress = null;
 
 			if (vhostName != null && vhostName != "" && vhosts != null) {
-				if (vhosts.containsKey(vhostName)) {
-					Map<String, Object> vhostProperties = (Map<String, Object>)vhosts.get(vhostName);
-					if (vhostProperties.containsKey("redirectAddress") && vhostProperties.get("redirectAddress") != null) {
-						redirectAddress = vhostProperties.get("redirectAddress").toString();
+				VHostProperties vhostProperties = vhosts.get(vhostName);
+				if (vhostProperties != null) {
+					if (vhostProperties.redirectAddress != null) {
+						redirectAddress = vhostProperties.redirectAddress;
 					}
 					else {
 						// This is probably either a configuration error, or a VHost that isn't intended to be used for load balancing
-						WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getRedirect: Got a redirect request from vhost '" + vhostName + "', but we couldn't find any redirect address for this vhost.");
+						WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getRedirectAddress: Server '" + serverId + "' has properties for vhost '" + vhostName + "', but we couldn't find any redirect address for this vhost.");
 					}
 				}
 				else {
-					// This could mean that none of the load balancer senders are updated to use the 
-					WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getRedirect: Got a redirect request from vhost '" + vhostName + "', but we couldn't find any properties for this vhost.");
+					// This could mean that the vhost isn't configured on this particular sender
+					WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getRedirectAddress: Vhost '" + vhostName + "' is known by other servers, but we couldn't find any properties for this vhost on server '" + serverId + "'.");
 				}
 			}
 			// Use this to return null if the requested vhost is unknown
@@ -93,208 +370,1590 @@ public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector
 			if (redirectAddress == null) {
 				 redirectAddress = this.redirect;
 			}
-//			System.out.println("VHost '" + vhostName + "' = " + redirectAddress);
-			return redirectAddress;
+//			System.out.println("VHost '" + vhostName + "' = " + redirectAddress);
+			return redirectAddress;
+		}
+
+
+		/**
+		 * @param vhostName
+		 * @param appName
+		 * @param streamName
+		 * @return true if the server (probably) has the stream. Always false if the sender doesn't report its streams.
+		 */
+		public boolean hasStream(String vhostName, String appName, String streamName) {
+			Map<String, StreamPresenceFilter> filters = getServer().streamPresence;
+			StreamPresenceFilter filter = filters != null ? filters.get(vhostName) : null;
+			return filter != null && filter.mightContain(appName, streamName);
+		}
+
+		/**
+		 * Get the spillover tier for a specific vhost. Senders may put a vhost in a different tier than the rest of
+		 * the server, for example a vhost that should only use owned edges.
+		 * 
+		 * Like getRedirectAddress(), this is only called when the vhost pools are rebuilt.
+		 * @param vhostName
+		 * @return
+		 */
+		public int getTier(String vhostName) {
+			VHostProperties vhostProperties = vhostName != null && vhosts != null ? vhosts.get(vhostName) : null;
+			if (vhostProperties != null && vhostProperties.tier >= 0) {
+				return vhostProperties.tier;
+			}
+			return tier;
+		}
+		
+		/**
+		 * The last reported outRate, plus the expected outRate of all redirects that haven't connected yet
+		 * @return
+		 */
+		public long getEstimatedOutRate() {
+			return Math.max(outRate, 0) + (long)redirectCount.get() * redirectRate;
+		}
+
+		/**
+		 * Age out the pending redirects when a new status message arrives.
+		 * 
+		 * Redirects that show up as new connections are now part of outRate, and are removed from redirectCount.
+		 * Half of the rest is dropped for every report, to get rid of clients that never connected to the server.
+		 * @param previousConnectCount
+		 * @param connectCount
+		 */
+		void ageRedirects(int previousConnectCount, int connectCount) {
+			int pending = redirectCount.get();
+			int arrived = (previousConnectCount >= 0 && connectCount > previousConnectCount) ? connectCount - previousConnectCount : 0;
+			int remaining = Math.max(pending - arrived, 0) / 2;
+			// Use a relative update, so redirects handed out while we're doing this aren't lost
+			redirectCount.addAndGet(remaining - pending);
+		}
+
+		/**
+		 * Remaining capacity, in bits per second, after the estimated outRate. Only meaningful if capacity is known.
+		 * @return
+		 */
+		public long getHeadroom() {
+			if (parent != null) {
+				return parent.getHeadroom();
+			}
+			return Math.min(capacity, MAX_LOAD) - Math.min(getEstimatedOutRate(), MAX_LOAD);
+		}
+
+		/**
+		 * Check if the server is below a utilization threshold. Servers without a known capacity are always below it.
+		 * 
+		 * The capacity is a server-wide ceiling, so per-vhost holders are checked against the whole server.
+		 * @param thresholdPercent
+		 * @return
+		 */
+		public boolean isBelowUtilization(int thresholdPercent) {
+			if (parent != null) {
+				return parent.isBelowUtilization(thresholdPercent);
+			}
+			if (capacity <= 0) {
+				return true;
+			}
+			return Math.min(getEstimatedOutRate(), MAX_LOAD) * 100 < Math.min(capacity, MAX_LOAD) * thresholdPercent;
+		}
+
+		/**
+		 * The effective weight as a fixed-point number (weight * WEIGHT_SCALE), capped to MAX_WEIGHT and reduced
+		 * while the server is in slow start
+		 * @return
+		 */
+		public long getScaledWeight() {
+			long scaledWeight = Math.min(Math.max(weight, 1), MAX_WEIGHT) * WEIGHT_SCALE;
+			if (!hasReducedWeight()) {
+				return scaledWeight;
+			}
+			return Math.max(scaledWeight * getWeightPercent() / 100, 1);
+		}
+
+		/**
+		 * @return The effective weight, in percent of the full weight, after slow start and drain
+		 */
+		public int getWeightPercent() {
+			return getSlowStartPercent() * getDrainPercent() / 100;
+		}
+
+		/**
+		 * @return true if the server's weight is currently reduced by slow start or drain
+		 */
+		public boolean hasReducedWeight() {
+			ServerHolder server = getServer();
+			return server.slowStart != null || server.drain != null;
+		}
+
+		/**
+		 * @return The current weight in percent of the full weight. 100 unless the server is being drained.
+		 */
+		public int getDrainPercent() {
+			Drain current = getServer().drain;
+			return current != null ? current.getPercent(System.currentTimeMillis()) : 100;
+		}
+
+		/**
+		 * Check if the server may get a new redirect: it must not be fully drained, and below the utilization threshold
+		 * @param thresholdPercent
+		 * @return
+		 */
+		public boolean acceptsRedirects(int thresholdPercent) {
+			Drain current = getServer().drain;
+			if (current != null && current.getPercent(System.currentTimeMillis()) <= 0) {
+				return false;
+			}
+			return isBelowUtilization(thresholdPercent);
+		}
+
+		/**
+		 * @return The current weight, in percent of the full weight. 100 unless the server is in slow start.
+		 */
+		public int getSlowStartPercent() {
+			ServerHolder server = getServer();
+			SlowStart current = server.slowStart;
+			return current != null ? current.getPercent(System.currentTimeMillis(), server.slowStartReports) : 100;
+		}
+
+		public boolean isSlowStarting() {
+			return getServer().slowStart != null;
+		}
+
+		/**
+		 * Start, continue or end the slow start when a status message arrives. Must be called while holding the lock.
+		 * @param slowStart The new slow start if the server just started running, or null
+		 */
+		void updateSlowStart(SlowStart slowStart) {
+			if (slowStart != null) {
+				this.slowStartReports = 0;
+				this.slowStart = slowStart;
+			}
+			else if (this.slowStart != null) {
+				this.slowStartReports++;
+				if (getSlowStartPercent() >= 100) {
+					this.slowStart = null;
+				}
+			}
+		}
+
+		/**
+		 * compareTo-function with support for weighted servers, using the estimated outRate instead of connects 
+		 */
+		public int compareTo(ServerHolder o) {
+			int result = compareLoad(Math.min(this.getEstimatedOutRate(), MAX_LOAD), this.getScaledWeight(), Math.min(o.getEstimatedOutRate(), MAX_LOAD), o.getScaledWeight());
+			// If the numbers are identical, redirect based on the serverId
+			if (result == 0) {
+				return this.serverId.compareTo(o.serverId);
+			}
+			// If not, redirect based on the server with the least current traffic.
+			return result;
+		}
+
+		/**
+		 * Compare load / weight for two servers without any division, by cross-multiplying with the other server's weight.
+		 * 
+		 * Loads must be capped to MAX_LOAD, and weights to MAX_WEIGHT * WEIGHT_SCALE, to avoid overflows.
+		 * @param load
+		 * @param scaledWeight
+		 * @param otherLoad
+		 * @param otherScaledWeight
+		 * @return -1, 0 or 1
+		 */
+		static int compareLoad(long load, long scaledWeight, long otherLoad, long otherScaledWeight) {
+			long thisLoad = load * otherScaledWeight;
+			long thatLoad = otherLoad * scaledWeight;
+			if (thisLoad == thatLoad) {
+				return 0;
+			}
+			return thisLoad > thatLoad ? 1 : -1;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof ServerHolder))
+				return false;
+
+			return this.serverId.equals(((ServerHolder) other).serverId);
+		}
+
+	}
+
+	/**
+	 * The static properties of a vhost on one server, as reported by its sender. Names and addresses are interned,
+	 * so the same vhost on hundreds of servers shares the same strings.
+	 */
+	static class VHostProperties {
+		final String redirectAddress;
+		/**
+		 * The vhost's own weight, or 0 to use the server weight
+		 */
+		final int weight;
+		/**
+		 * The vhost's own spillover tier, or -1 to use the server tier
+		 */
+		final int tier;
+
+		VHostProperties(String redirectAddress, int weight, int tier) {
+			this.redirectAddress = redirectAddress != null ? redirectAddress.intern() : null;
+			this.weight = weight;
+			this.tier = tier;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof VHostProperties)) {
+				return false;
+			}
+			VHostProperties o = (VHostProperties)other;
+			return weight == o.weight && tier == o.tier && (redirectAddress == null ? o.redirectAddress == null : redirectAddress.equals(o.redirectAddress));
+		}
+
+		public int hashCode() {
+			return (redirectAddress != null ? redirectAddress.hashCode() : 0) * 31 + weight * 7 + tier;
+		}
+	}
+
+	/**
+	 * The customProperties of a status message, parsed once and kept until the sender sends different customProperties.
+	 * 
+	 * Senders only put the static server properties in customProperties (the changing per-vhost load is sent in its own
+	 * field), so most messages have the same customProperties as the previous one. For these, the previous parse
+	 * is used instead of parsing the JSON again.
+	 */
+	static class CustomProperties {
+		/**
+		 * The customProperties this was parsed from
+		 */
+		final String source;
+		final int weight;
+		final long capacity;
+		final String group;
+		final int tier;
+		final int capabilities;
+		final RedirectRateLimit redirectLimit;
+		final Map<String, VHostProperties> vhosts;
+		/**
+		 * Per-vhost load and streams, for older senders that put them inside customProperties. null otherwise.
+		 */
+		final Map<String, long[]> vhostLoads;
+		final Map<String, StreamPresenceFilter> streamFilters;
+
+		CustomProperties(String customProperties) {
+			this.source = customProperties;
+
+			JSONObject jsonServer = (JSONObject)JSONValue.parse(customProperties);
+			Map<String, Object> rawVHosts = (Map<String, Object>)jsonServer.get("vhosts");
+			Map<String, long[]> loads = null;
+			Map<String, StreamPresenceFilter> filters = null;
+			Map<String, VHostProperties> tables = null;
+			if (rawVHosts != null) {
+				loads = parseVHostLoads(rawVHosts);
+				filters = parseStreamPresence(rawVHosts);
+				tables = parseVHostProperties(rawVHosts);
+			}
+			this.vhostLoads = loads != null && !loads.isEmpty() ? loads : null;
+			this.streamFilters = filters;
+			this.vhosts = tables;
+
+			Object rawWeight = jsonServer.get("weight");
+			if (rawWeight instanceof Long) {
+				this.weight = ((Long)rawWeight).intValue();
+			}
+			else {
+				// Backwards compatilibity: https://github.com/availo/wowza-vhost-loadbalancer/issues/1
+				this.weight = Integer.parseInt((String)rawWeight);
+			}
+
+			this.capacity = toLong(jsonServer.get("capacity"), 0);
+			Object rawRedirectLimit = jsonServer.get("redirectLimit");
+			this.redirectLimit = rawRedirectLimit instanceof String ? RedirectRateLimit.parse((String)rawRedirectLimit) : null;
+			Object rawGroup = jsonServer.get("group");
+			this.group = rawGroup instanceof String && ((String)rawGroup).length() > 0 ? ((String)rawGroup).intern() : null;
+			this.tier = (int)Math.min(Math.max(toLong(jsonServer.get("tier"), 0), 0), Integer.MAX_VALUE);
+			Object rawCapabilities = jsonServer.get("capabilities");
+			this.capabilities = rawCapabilities instanceof String ? LoadBalancerCapabilities.parse((String)rawCapabilities) : LoadBalancerCapabilities.ALL;
+		}
+
+		/**
+		 * The LoadBalancerMonitorVHost.MSGFIELDS_CONFIGVERSION these were last sent with, or -1 for older senders
+		 */
+		volatile long configVersion = -1;
+	}
+
+	/**
+	 * The rates and per-vhost load from a binary status message (see LoadBalancerMonitorVHost.BINARYSTATUS_VERSION)
+	 */
+	static class BinaryStatus {
+		long inRate = -1;
+		long outRate = -1;
+		Map<String, long[]> vhostLoads;
+		Map<String, StreamPresenceFilter> streamFilters;
+	}
+
+	/**
+	 * Immutable pool of running servers for a single vhost, with the redirect address for every server already resolved.
+	 * 
+	 * The ServerHolder objects are shared between all pools, so load and redirect counts are server-wide, unless every
+	 * server in the pool reports per-vhost load. In that case the pool uses the per-vhost holders instead.
+	 * A pool is only rebuilt when a server enters or leaves STATUS_RUNNING, when a sender's vhost properties or weight
+	 * change, or when the selection strategy is replaced.
+	 * 
+	 * The spillover tier of each server is resolved together with its redirect address. The active tier is the
+	 * only mutable part of a pool, and is carried over to the pool that replaces it.
+	 */
+	public static class VHostPool {
+		final String vhostName;
+		final ServerHolder[] servers;
+		final String[] redirectAddresses;
+		final int[] tiers;
+		/**
+		 * The distinct tiers in this pool, lowest first
+		 */
+		final int[] tierLevels;
+		/**
+		 * Index in tierLevels of the highest tier currently handed out
+		 */
+		final AtomicInteger activeTier;
+		final ILoadBalancerStrategy strategy;
+		final Object strategyState;
+		/**
+		 * Whether servers holds the load for this vhost only, instead of the server-wide load
+		 */
+		final boolean perVHost;
+		/**
+		 * Only built if stream affinity is used, and then only once per pool
+		 */
+		private volatile ConsistentHashRing ring = null;
+
+		VHostPool(String vhostName, ServerHolder[] servers, ILoadBalancerStrategy strategy) {
+			this(vhostName, servers, strategy, null);
+		}
+
+		/**
+		 * @param vhostName
+		 * @param servers
+		 * @param strategy
+		 * @param previous The pool this replaces, if any, to keep the same tiers active
+		 */
+		VHostPool(String vhostName, ServerHolder[] servers, ILoadBalancerStrategy strategy, VHostPool previous) {
+			this.vhostName = vhostName;
+			this.servers = servers;
+			this.redirectAddresses = new String[servers.length];
+			this.tiers = new int[servers.length];
+			this.perVHost = servers.length > 0 && servers[0].parent != null;
+			SortedSet<Integer> levels = new TreeSet<Integer>();
+			for (int i = 0; i < servers.length; i++) {
+				ServerHolder server = servers[i].getServer();
+				redirectAddresses[i] = vhostName == null ? server.redirect : server.getRedirectAddress(vhostName);
+				tiers[i] = vhostName == null ? server.tier : server.getTier(vhostName);
+				levels.add(tiers[i]);
+			}
+			this.tierLevels = new int[levels.size()];
+			int active = 0;
+			int previousTier = previous != null ? previous.getActiveTier() : Integer.MIN_VALUE;
+			Iterator<Integer> iter = levels.iterator();
+			for (int i = 0; iter.hasNext(); i++) {
+				tierLevels[i] = iter.next();
+				if (tierLevels[i] <= previousTier) {
+					active = i;
+				}
+			}
+			this.activeTier = new AtomicInteger(active);
+			// Keep the strategy together with its state, in case the strategy is replaced while a redirect is in progress
+			this.strategy = strategy;
+			this.strategyState = strategy.createPoolState(this);
+		}
+
+		/**
+		 * @return The highest tier currently handed out
+		 */
+		int getActiveTier() {
+			return tierLevels.length > 0 ? tierLevels[activeTier.get()] : 0;
+		}
+
+		ConsistentHashRing getRing() {
+			ConsistentHashRing ret = ring;
+			if (ret == null) {
+				// Two threads may build the ring at the same time, but they will build identical rings
+				ret = new ConsistentHashRing(servers);
+				ring = ret;
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Cluster-wide figures for the vhost quotas, published while holding the lock after every status message
+	 */
+	private static class QuotaState {
+		/**
+		 * Sum of the capacity of all running servers
+		 */
+		final long capacity;
+		/**
+		 * Sum of the reported load of all running servers
+		 */
+		final long clusterLoad;
+		/**
+		 * Reported load per vhost with a quota
+		 */
+		final Map<String, Long> vhostLoads;
+		/**
+		 * Guaranteed load that isn't used by the vhosts with a quota
+		 */
+		final long totalReservedUnused;
+
+		QuotaState(long capacity, long clusterLoad, Map<String, Long> vhostLoads, long totalReservedUnused) {
+			this.capacity = capacity;
+			this.clusterLoad = clusterLoad;
+			this.vhostLoads = vhostLoads;
+			this.totalReservedUnused = totalReservedUnused;
+		}
+	}
+
+	/**
+	 * Immutable snapshot of one pool per vhost known by the senders. A new map is published by onMessage()/onIdle()
+	 * whenever the pools need to be rebuilt, so getRedirect() and getInfo() never have to take the lock.
+	 */
+	private volatile Map<String, VHostPool> pools = new HashMap<String, VHostPool>();
+	
+	/**
+	 * Pool used for unknown vhosts and legacy requests, redirecting to the default address from Server.xml
+	 */
+	private volatile VHostPool defaultPool = new VHostPool(null, new ServerHolder[0], new LoadBalancerStrategyLeastBandwidth());
+	
+	/**
+	 * The strategy used when pools are built. Defaults to the original "least bandwidth" behaviour.
+	 */
+	private volatile ILoadBalancerStrategy strategy = new LoadBalancerStrategyLeastBandwidth();
+	
+	/**
+	 * All known servers, regardless of status. Only accessed while holding the lock.
+	 */
+	private Map<String, ServerHolder> serverMap = new HashMap<String, ServerHolder>();
+	
+	/**
+	 * Writer lock. Only used by onMessage(), onIdle() and getTotalConnections() - never by getRedirect().
+	 */
+	private Object lock = new Object();
+	private AtomicLong redirectCount = new AtomicLong(0);
+	private LoadBalancerListener listener = null;
+	
+	/**
+	 * Expected outRate per redirect for servers without any connections ("loadBalancerListenerRedirectRate")
+	 */
+	private long defaultRedirectRate = DEFAULT_REDIRECTRATE;
+	
+	/**
+	 * Servers above this utilization of their reported capacity are skipped ("loadBalancerListenerUtilizationThreshold")
+	 */
+	private volatile int utilizationThreshold = DEFAULT_UTILIZATIONTHRESHOLD;
+	
+	/**
+	 * Whether viewers of the same stream should be sent to the same servers ("loadBalancerListenerStreamAffinity")
+	 */
+	private volatile boolean streamAffinity = false;
+	
+	/**
+	 * How far above its share of the load a server may go before a stream spills over to the next server on the ring,
+	 * in percent ("loadBalancerListenerStreamAffinityLoadFactor")
+	 */
+	private volatile int streamAffinityLoadFactor = DEFAULT_STREAMAFFINITYLOADFACTOR;
+
+	/**
+	 * Whether viewers should be sent to a server that already has their stream, if its load is comparable
+	 * ("loadBalancerListenerStreamPresence")
+	 */
+	private volatile boolean streamPresence = false;
+
+	/**
+	 * How much more loaded than the server picked by the strategy a server with the stream may be, in percent
+	 * ("loadBalancerListenerStreamPresenceLoadFactor")
+	 */
+	private volatile int streamPresenceLoadFactor = DEFAULT_STREAMPRESENCELOADFACTOR;
+
+	/**
+	 * The server each client was last sent to, or null if client affinity is disabled ("loadBalancerListenerClientAffinity")
+	 */
+	private volatile ClientAffinityCache clientAffinity = null;
+
+	/**
+	 * Query string parameter that identifies a player across IP addresses ("loadBalancerListenerClientAffinityToken").
+	 * The client's IP address is used if this isn't set, or isn't present in the request.
+	 */
+	private volatile String clientAffinityToken = null;
+
+	/**
+	 * Maps client subnets to edge groups, or null if subnet-aware routing is disabled ("loadBalancerListenerSubnetMapFile")
+	 */
+	private volatile SubnetTrie subnetMap = null;
+
+	/**
+	 * Guaranteed and maximum share of the cluster per vhost ("loadBalancerListenerVHostQuotas"). Empty if quotas are disabled.
+	 */
+	private volatile Map<String, VHostQuota> vhostQuotas = new HashMap<String, VHostQuota>();
+
+	/**
+	 * null if quotas are disabled
+	 */
+	private volatile QuotaState quotaState = null;
+
+	/**
+	 * The running totals quotaState is published from. Only used while holding the lock.
+	 */
+	private long quotaCapacity = 0;
+	private long quotaClusterLoad = 0;
+	private final Map<String, Long> quotaVHostLoads = new HashMap<String, Long>();
+
+	/**
+	 * Vhosts with a quota that has been logged as unenforceable, since not all their servers report per-vhost load
+	 */
+	private final ConcurrentHashMap<String, Boolean> quotaWarnings = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Redirect rate limit for every server that doesn't report its own ("loadBalancerListenerServerRedirectLimit"). null means no limit.
+	 */
+	private volatile RedirectRateLimit serverRedirectLimit = null;
+
+	/**
+	 * Redirect rate limit per vhost ("loadBalancerListenerVHostRedirectLimits"). Empty means no limits.
+	 */
+	private volatile Map<String, RedirectRateLimit> vhostRedirectLimits = new HashMap<String, RedirectRateLimit>();
+
+	/**
+	 * The last parsed customProperties per server, used to skip parsing when they haven't changed.
+	 * Servers are removed when they stop, or when their customProperties are out of date.
+	 */
+	private final ConcurrentHashMap<String, CustomProperties> customPropertiesCache = new ConcurrentHashMap<String, CustomProperties>();
+
+	/**
+	 * Decode buffer for binary status messages, one per thread, since onMessage() may be called by several threads
+	 */
+	private static final ThreadLocal<BinaryStatusBuffer> statusBuffers = new ThreadLocal<BinaryStatusBuffer>() {
+		protected BinaryStatusBuffer initialValue() {
+			return new BinaryStatusBuffer(1024);
+		}
+	};
+
+	/**
+	 * Token buckets for the vhosts in vhostRedirectLimits, created on first use
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> vhostRedirectBuckets = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Slow start for servers that start running ("loadBalancerListenerSlowStartTime" in seconds,
+	 * "loadBalancerListenerSlowStartReports" and "loadBalancerListenerSlowStartInitialWeight" in percent).
+	 * Disabled if both the time and the number of reports are 0.
+	 */
+	private volatile long slowStartTime = 0;
+	private volatile int slowStartReports = 0;
+	private volatile int slowStartInitialWeight = DEFAULT_SLOWSTARTINITIALWEIGHT;
+
+	/**
+	 * Utilization of the tiers in use at which the next tier is opened ("loadBalancerListenerTierThreshold"),
+	 * and how far below that it must drop before the highest tier is closed again ("loadBalancerListenerTierHysteresis")
+	 */
+	private volatile int tierThreshold = DEFAULT_TIERTHRESHOLD;
+	private volatile int tierHysteresis = DEFAULT_TIERHYSTERESIS;
+
+	public LoadBalancerRedirectorBandwidth() {
+	}
+
+	public void init(LoadBalancerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Create a selection strategy from a short name, or from a fully qualified class name implementing ILoadBalancerStrategy
+	 * @param strategyName "leastBandwidth", "leastConnections", "weightedRoundRobin", "powerOfTwoChoices", "leastScore", "mostHeadroom" or a class name
+	 * @return The strategy, or null if it couldn't be created
+	 */
+	public static ILoadBalancerStrategy createStrategy(String strategyName) {
+		if (strategyName == null) {
+			return null;
+		}
+		strategyName = strategyName.trim();
+		if (strategyName.equalsIgnoreCase("leastBandwidth")) {
+			return new LoadBalancerStrategyLeastBandwidth();
+		}
+		if (strategyName.equalsIgnoreCase("leastConnections")) {
+			return new LoadBalancerStrategyLeastConnections();
+		}
+		if (strategyName.equalsIgnoreCase("weightedRoundRobin")) {
+			return new LoadBalancerStrategyWeightedRoundRobin();
+		}
+		if (strategyName.equalsIgnoreCase("powerOfTwoChoices")) {
+			return new LoadBalancerStrategyPowerOfTwoChoices();
+		}
+		if (strategyName.equalsIgnoreCase("leastScore")) {
+			return new LoadBalancerStrategyLeastScore();
+		}
+		if (strategyName.equalsIgnoreCase("mostHeadroom")) {
+			return new LoadBalancerStrategyMostHeadroom();
+		}
+		try {
+			Class<?> strategyClass = Class.forName(strategyName);
+			return (ILoadBalancerStrategy) strategyClass.newInstance();
+		} catch (Exception e) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).error("LoadBalancerRedirectorBandwidth.createStrategy[" + strategyName + "]: " + e.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Replace the selection strategy, and rebuild all pools so the new strategy is used for the next redirect
+	 * @param strategyName See createStrategy()
+	 * @return True if the strategy was replaced
+	 */
+	public boolean setStrategy(String strategyName) {
+		ILoadBalancerStrategy newStrategy = createStrategy(strategyName);
+		if (newStrategy == null) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.setStrategy: Unknown strategy '" + strategyName + "'. Keeping '" + getStrategyName() + "'.");
+			return false;
+		}
+		synchronized (lock) {
+			strategy = newStrategy;
+			publishPools();
+		}
+		WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.setStrategy: Using strategy '" + getStrategyName() + "'.");
+		return true;
+	}
+
+	public void setDefaultRedirectRate(long defaultRedirectRate) {
+		if (defaultRedirectRate > 0) {
+			this.defaultRedirectRate = defaultRedirectRate;
+		}
+	}
+
+	public long getDefaultRedirectRate() {
+		return defaultRedirectRate;
+	}
+
+	public void setUtilizationThreshold(int utilizationThreshold) {
+		if (utilizationThreshold > 0) {
+			this.utilizationThreshold = utilizationThreshold;
+		}
+	}
+
+	public int getUtilizationThreshold() {
+		return utilizationThreshold;
+	}
+
+	public void setStreamAffinity(boolean streamAffinity) {
+		this.streamAffinity = streamAffinity;
+	}
+
+	public boolean getStreamAffinity() {
+		return streamAffinity;
+	}
+
+	public void setStreamAffinityLoadFactor(int streamAffinityLoadFactor) {
+		// Anything below 100% would make it impossible for all servers to stay below the bound
+		if (streamAffinityLoadFactor > 100) {
+			this.streamAffinityLoadFactor = streamAffinityLoadFactor;
+		}
+	}
+
+	public int getStreamAffinityLoadFactor() {
+		return streamAffinityLoadFactor;
+	}
+
+	public void setStreamPresence(boolean streamPresence) {
+		this.streamPresence = streamPresence;
+	}
+
+	public boolean getStreamPresence() {
+		return streamPresence;
+	}
+
+	public void setStreamPresenceLoadFactor(int streamPresenceLoadFactor) {
+		if (streamPresenceLoadFactor >= 100) {
+			this.streamPresenceLoadFactor = streamPresenceLoadFactor;
+		}
+	}
+
+	public int getStreamPresenceLoadFactor() {
+		return streamPresenceLoadFactor;
+	}
+
+	/**
+	 * Remember which server each client was sent to, and send it back there while that server is still running and
+	 * below its utilization threshold
+	 * @param maxEntries Maximum number of clients to remember. 0 or less disables client affinity.
+	 * @param ttl How long to remember a client, in seconds
+	 */
+	public void setClientAffinity(int maxEntries, int ttl) {
+		if (maxEntries <= 0 || ttl <= 0) {
+			clientAffinity = null;
+			return;
+		}
+		clientAffinity = new ClientAffinityCache(maxEntries, ttl * 1000L);
+	}
+
+	public boolean getClientAffinity() {
+		return clientAffinity != null;
+	}
+
+	/**
+	 * @return The number of clients currently remembered with client affinity
+	 */
+	public int getClientAffinitySize() {
+		ClientAffinityCache cache = clientAffinity;
+		return cache != null ? cache.size() : 0;
+	}
+
+	public void setClientAffinityToken(String clientAffinityToken) {
+		this.clientAffinityToken = clientAffinityToken;
+	}
+
+	public String getClientAffinityToken() {
+		return clientAffinityToken;
+	}
+
+	/**
+	 * Prefer the servers in the client's edge group, if the client's address is found in the subnet map
+	 * @param subnetMap The new map, or null to disable subnet-aware routing
+	 */
+	public void setSubnetMap(SubnetTrie subnetMap) {
+		this.subnetMap = subnetMap;
+	}
+
+	public SubnetTrie getSubnetMap() {
+		return subnetMap;
+	}
+
+	/**
+	 * Set the vhost quotas
+	 * @param quotas "vhostName=minimum:maximum,...", in percent of the total capacity. null or empty disables quotas.
+	 */
+	public void setVHostQuotas(String quotas) {
+		Map<String, VHostQuota> parsed = VHostQuota.parse(quotas);
+		synchronized (lock) {
+			vhostQuotas = parsed;
+			updateQuotaState();
+		}
+	}
+
+	public Map<String, VHostQuota> getVHostQuotas() {
+		return Collections.unmodifiableMap(vhostQuotas);
+	}
+
+	/**
+	 * @param limit "rate:burst" for every server that doesn't report its own limit. null or empty disables the limit.
+	 */
+	public void setServerRedirectLimit(String limit) {
+		serverRedirectLimit = RedirectRateLimit.parse(limit);
+	}
+
+	public RedirectRateLimit getServerRedirectLimit() {
+		return serverRedirectLimit;
+	}
+
+	/**
+	 * @param limits "vhostName=rate:burst,..."
+	 */
+	public void setVHostRedirectLimits(String limits) {
+		vhostRedirectLimits = RedirectRateLimit.parseMap(limits);
+	}
+
+	public Map<String, RedirectRateLimit> getVHostRedirectLimits() {
+		return Collections.unmodifiableMap(vhostRedirectLimits);
+	}
+
+	/**
+	 * Ramp up the weight of servers that start running (or come back after a timeout), since they report an
+	 * outRate close to 0 and would otherwise get every redirect until their next status message.
+	 * @param seconds Length of the ramp in seconds. 0 to only use the number of reports.
+	 * @param reports Length of the ramp in status messages. 0 to only use the time.
+	 * @param initialWeight Weight at the beginning of the ramp, in percent of the full weight
+	 */
+	public void setSlowStart(int seconds, int reports, int initialWeight) {
+		this.slowStartTime = Math.max(seconds, 0) * 1000L;
+		this.slowStartReports = Math.max(reports, 0);
+		this.slowStartInitialWeight = Math.min(Math.max(initialWeight, 1), 100);
+	}
+
+	public int getSlowStartTime() {
+		return (int)(slowStartTime / 1000);
+	}
+
+	public int getSlowStartReports() {
+		return slowStartReports;
+	}
+
+	public int getSlowStartInitialWeight() {
+		return slowStartInitialWeight;
+	}
+
+	/**
+	 * Set the spillover tier thresholds
+	 * @param threshold Utilization (in percent of the capacity of the tiers in use) at which the next tier is opened
+	 * @param hysteresis How many percent below the threshold the utilization must drop before the highest tier is closed
+	 */
+	public void setTierThresholds(int threshold, int hysteresis) {
+		if (threshold > 0) {
+			this.tierThreshold = threshold;
+		}
+		this.tierHysteresis = Math.min(Math.max(hysteresis, 0), this.tierThreshold);
+	}
+
+	public int getTierThreshold() {
+		return tierThreshold;
+	}
+
+	public int getTierHysteresis() {
+		return tierHysteresis;
+	}
+
+	/**
+	 * Start draining a server: its weight decays linearly to 0 over the given time, after which it gets no more
+	 * redirects. The server stays in the pools for monitoring, and a message is logged when its connectCount reaches 0.
+	 * 
+	 * Available through JMX and HTTPLoadBalancerRedirector.
+	 * @param serverId
+	 * @param seconds Time to decay the weight to 0. 0 stops all redirects to the server right away.
+	 * @return false if the server is unknown
+	 */
+	public boolean drainServer(String serverId, int seconds) {
+		synchronized (lock) {
+			ServerHolder serverHolder = serverMap.get(serverId);
+			if (serverHolder == null) {
+				return false;
+			}
+			serverHolder.drain = new Drain(System.currentTimeMillis(), Math.max(seconds, 0) * 1000L);
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.drainServer: Draining server '" + serverId + "' over " + seconds + " seconds.");
+			return true;
+		}
+	}
+
+	/**
+	 * Stop draining a server, and give it its full weight back
+	 * @param serverId
+	 * @return false if the server is unknown
+	 */
+	public boolean undrainServer(String serverId) {
+		synchronized (lock) {
+			ServerHolder serverHolder = serverMap.get(serverId);
+			if (serverHolder == null) {
+				return false;
+			}
+			serverHolder.drain = null;
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.undrainServer: Server '" + serverId + "' is no longer draining.");
+			return true;
+		}
+	}
+
+	/**
+	 * Override the weight reported by a server's sender, until the override is removed or the listener is restarted.
+	 * 
+	 * Per-vhost weights that default to the server weight follow the override with the server's next status message.
+	 * @param serverId
+	 * @param weight The new weight, or 0 to go back to the weight reported by the sender
+	 * @return false if the server is unknown or the weight is invalid
+	 */
+	public boolean setServerWeight(String serverId, int weight) {
+		if (weight < 0 || weight > MAX_WEIGHT) {
+			return false;
+		}
+		synchronized (lock) {
+			ServerHolder serverHolder = serverMap.get(serverId);
+			if (serverHolder == null) {
+				return false;
+			}
+			serverHolder.weightOverride = weight;
+			if (weight > 0 && weight != serverHolder.weight) {
+				serverHolder.weight = weight;
+				// Some strategies precompute per-pool values from the weights
+				publishPools();
+			}
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.setServerWeight: Weight for server '" + serverId + "' is " + (weight > 0 ? "set to " + weight : "reported by the sender") + ".");
+			return true;
+		}
+	}
+
+	public String getStrategyName() {
+		return strategy.getClass().getName();
+	}
+
+	public long getRedirectCount() {
+		return this.redirectCount.get();
+	}
+
+	
+	public List<Map<String, Object>> getInfo() {
+		return getInfo(null);
+	}
+	
+	public List<Map<String, Object>> getInfo(String vhostName) {
+		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+
+		/*
+		 * Only the servers that are currently used by getRedirect() are listed. The pools are sorted by serverId,
+		 * which keeps the ServerInfo* output stable between requests.
+		 */
+		VHostPool pool = getPool(vhostName);
+
+		// Iterate through all the "LoadBalancerSender"-servers that are currently active
+		for (int i = 0; i < pool.servers.length; i++) {
+			ServerHolder serverHolder = pool.servers[i];
+			ServerHolder server = serverHolder.getServer();
+			Map<String, Object> map = new HashMap<String, Object>();
+
+			map.put("serverId", serverHolder.serverId);
+			map.put("status", LoadBalancerUtils.statusToString(server.status));
+			// The redirect address was resolved when the pool was built. Unknown vhosts will use the default redirectAddress from Server.xml.
+			map.put("redirect", pool.redirectAddresses[i]);
+
+			/*
+			 * Uncomment the following three lines if you want to output information about all available vhosts.
+			 * It doesn't make any sense from a practical point of view, but could be helpful while debugging.
+			 * Note: The LoadBalancerUtils is closed source, so LoadBalancerUtils.serverInfoToXMLStr() is not VHosts-aware, and
+			 * will just output the information in a single XML tag. The JSON output works better in this regard. 
+			 */
+			/*if (serverHolder.vhosts != null && serverHolder.vhosts.size() > 0) {
+				map.put("VHosts", serverHolder.vhosts);
+			}*/
+
+			map.put("weight", new Integer(serverHolder.weight));
+			if (serverHolder.isSlowStarting()) {
+				map.put("slowStart", new Integer(serverHolder.getSlowStartPercent()));
+			}
+			Drain drain = server.drain;
+			if (drain != null) {
+				map.put("drain", new Integer(drain.getPercent(System.currentTimeMillis())));
+				map.put("drained", Boolean.valueOf(drain.drained));
+			}
+			if (server.weightOverride > 0) {
+				map.put("weightOverride", new Integer(server.weightOverride));
+			}
+			map.put("inRate", new Long(server.inRate));
+			map.put("outRate", new Long(serverHolder.outRate));
+			map.put("connectCount", new Integer(serverHolder.connectCount));
+			map.put("redirectCount", new Integer(serverHolder.redirectCount.get()));
+			map.put("redirectRate", new Long(serverHolder.redirectRate));
+			map.put("estimatedOutRate", new Long(serverHolder.getEstimatedOutRate()));
+			if (server != serverHolder) {
+				// The figures above are for this vhost only
+				map.put("serverWeight", new Integer(server.weight));
+				map.put("serverOutRate", new Long(server.outRate));
+				map.put("serverConnectCount", new Integer(server.connectCount));
+			}
+			if (server.group != null) {
+				map.put("group", server.group);
+			}
+			if (server.capabilities != LoadBalancerCapabilities.ALL) {
+				map.put("capabilities", LoadBalancerCapabilities.toString(server.capabilities));
+			}
+			if (pool.tierLevels.length > 1) {
+				map.put("tier", new Integer(pool.tiers[i]));
+				map.put("activeTier", new Integer(pool.getActiveTier()));
+			}
+			if (server.capacity > 0) {
+				map.put("capacity", new Long(server.capacity));
+				map.put("utilization", new Double(100.0 * server.getEstimatedOutRate() / server.capacity));
+			}
+			map.put("debug", new Double((double)serverHolder.getEstimatedOutRate() / serverHolder.weight));
+
+			while (true) {
+				if (this.listener == null) {
+					break;
+				}
+
+				LoadBalancerServer loadBalancerServer = this.listener.getServer(serverHolder.serverId);
+				if (loadBalancerServer == null) {
+					break;
+				}
+				map.put("lastMessage", loadBalancerServer.getLastMessageReceiveTimeStr());
+				break;
+			}
+
+			ret.add(map);
+		}
+		return ret;
+	}
+
+	public long getTotalConnections() {
+		long ret = 0;
+		synchronized (lock) {
+			Iterator<ServerHolder> iter = serverMap.values().iterator();
+			while (iter.hasNext()) {
+				ServerHolder serverHolder = iter.next();
+				ret += serverHolder.connectCount;
+				ret += serverHolder.redirectCount.get();
+			}
+		}
+
+		return ret;
+	}
+
+	public LoadBalancerRedirect getRedirect() {
+		return getRedirect((String)null);
+	}
+	
+	/**
+	 * Get the pool for a vhost, or the default pool if the vhost is unknown to all senders
+	 * @param vhostName
+	 * @return
+	 */
+	private VHostPool getPool(String vhostName) {
+		if (vhostName != null) {
+			VHostPool pool = pools.get(vhostName);
+			if (pool != null) {
+				return pool;
+			}
+			if (defaultPool.servers.length > 0) {
+				// This could mean that none of the load balancer senders are updated to use the VHost LoadBalancer, or that the vhost isn't intended to be used for load balancing
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getPool: Got a request from vhost '" + vhostName + "', but we couldn't find any properties for this vhost.");
+			}
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Get a redirect for this vhost, or null if no redirect could be handed out
+	 * @param vhostName
+	 * @return
+	 */
+	public LoadBalancerRedirect getRedirect(String vhostName) {
+		return getRedirect(new LoadBalancerRedirectRequest(vhostName));
+	}
+
+	/**
+	 * Get a redirect for this request, or null if no redirect could be handed out
+	 * @param request
+	 * @return
+	 */
+	public LoadBalancerRedirect getRedirect(LoadBalancerRedirectRequest request) {
+		try {
+			return requestRedirect(request);
+		} catch (LoadBalancerRejectedException e) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorConcurrentConnects.getRedirect: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Get a redirect for this vhost, without any information about the client or the stream
+	 * @param vhostName
+	 * @return
+	 * @throws LoadBalancerRejectedException If there are no servers, or all servers are saturated
+	 */
+	public LoadBalancerRedirect requestRedirect(String vhostName) throws LoadBalancerRejectedException {
+		return requestRedirect(new LoadBalancerRedirectRequest(vhostName));
+	}
+
+	/**
+	 * Let the pool's strategy pick a server for this vhost, without taking any global lock.
+	 * 
+	 * Servers above their utilization threshold are skipped. If every server is above it, the redirect is rejected
+	 * instead of quietly overloading the least loaded one.
+	 * 
+	 * With a subnet map, only the servers in the client's edge group are considered, unless none of them are
+	 * running and below their utilization threshold.
+	 * 
+	 * Servers without all the capabilities the request requires are never considered.
+	 * 
+	 * With spillover tiers, only the servers in the active tiers are considered. The next tier is opened when the
+	 * active tiers reach the tier threshold, or when none of their servers can take the client.
+	 * 
+	 * With client affinity enabled, a returning client is sent back to the server it got last time, as long as that
+	 * server is still running and below its utilization threshold.
+	 * 
+	 * With stream affinity enabled, and a known stream name, the stream is hashed onto a consistent hash ring, so
+	 * viewers of the same stream end up on the same few servers. The strategy is only used if the stream's servers
+	 * are all above their bounded load.
+	 * 
+	 * With stream presence enabled, and a known stream name, a server that already has the stream is used instead of
+	 * the server picked by the strategy, as long as its load is comparable.
+	 * 
+	 * Two concurrent callers may end up picking the same server, but since redirectCount is atomic,
+	 * both redirects are still counted and will push the server down for the following picks.
+	 * 
+	 * The redirect is counted right away. Callers that may still fail to send the client to the server should
+	 * release() the reservation when they do, and confirm() it otherwise.
+	 * @param request
+	 * @return
+	 * @throws LoadBalancerRejectedException If there are no servers, or all servers are saturated
+	 */
+	public LoadBalancerRedirectReservation reserveRedirect(LoadBalancerRedirectRequest request) throws LoadBalancerRejectedException {
+		String vhostName = request.getVHostName();
+		VHostPool pool = getPool(vhostName);
+		ServerHolder[] poolServers = pool.servers;
+
+		if (poolServers.length <= 0) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_NOSERVERS, "No servers available for vhost '" + vhostName + "'.");
+		}
+		checkQuota(pool, vhostName);
+
+		long now = System.nanoTime();
+		RedirectRateLimit vhostLimit = vhostName != null ? vhostRedirectLimits.get(vhostName) : null;
+		AtomicLong vhostBucket = null;
+		if (vhostLimit != null) {
+			vhostBucket = getVHostRedirectBucket(vhostName);
+			long wait = vhostLimit.tryAcquire(vhostBucket, now);
+			if (wait > 0) {
+				throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_RETRYLATER, "Vhost '" + vhostName + "' is above its redirect rate limit of " + vhostLimit + ".", wait / 1000000);
+			}
+		}
+
+		try {
+			return reserveRedirect(request, pool, now, vhostLimit, vhostBucket);
+		} catch (LoadBalancerRejectedException e) {
+			// Give back the vhost token, since no redirect was handed out
+			if (vhostBucket != null) {
+				vhostLimit.release(vhostBucket);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Pick a server for a redirect, after the vhost token has been taken
+	 * @param request
+	 * @param pool
+	 * @param now System.nanoTime()
+	 * @param vhostLimit
+	 * @param vhostBucket The vhost bucket the token was taken from, or null
+	 * @return
+	 * @throws LoadBalancerRejectedException
+	 */
+	private LoadBalancerRedirectReservation reserveRedirect(LoadBalancerRedirectRequest request, VHostPool pool, long now, RedirectRateLimit vhostLimit, AtomicLong vhostBucket) throws LoadBalancerRejectedException {
+		String vhostName = request.getVHostName();
+		ServerHolder[] poolServers = pool.servers;
+		int threshold = utilizationThreshold;
+		int required = request.getRequiredCapabilities();
+		int[] candidates = new int[poolServers.length];
+		int count = 0;
+		SubnetTrie subnets = subnetMap;
+		String group = subnets != null ? subnets.lookup(request.getClientIp()) : null;
+		if (group != null) {
+			for (int i = 0; i < poolServers.length; i++) {
+				ServerHolder server = poolServers[i].getServer();
+				if (LoadBalancerCapabilities.hasAll(server.capabilities, required) && group.equals(server.group) && poolServers[i].acceptsRedirects(threshold)) {
+					candidates[count++] = i;
+				}
+			}
+		}
+		int capable = 0;
+		if (count == 0) {
+			// No group, or the whole group is saturated. Fall back to the global pool.
+			for (int i = 0; i < poolServers.length; i++) {
+				if (LoadBalancerCapabilities.hasAll(poolServers[i].getServer().capabilities, required)) {
+					capable++;
+					if (poolServers[i].acceptsRedirects(threshold)) {
+						candidates[count++] = i;
+					}
+				}
+			}
+		}
+		if (count == 0 && capable == 0) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_NOSERVERS, "None of the " + poolServers.length + " servers for vhost '" + vhostName + "' support '" + LoadBalancerCapabilities.toString(required) + "'.");
+		}
+		if (count == 0) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_CAPACITYEXHAUSTED, "All " + poolServers.length + " servers for vhost '" + vhostName + "' are above " + threshold + "% of their capacity.");
+		}
+		count = filterRateLimited(poolServers, candidates, count, now, vhostName);
+		if (pool.tierLevels.length > 1) {
+			count = filterTiers(pool, candidates, count);
 		}
 
-		
-		/**
-		 * compareTo-function with support for weighted servers, using outRate instead of connects 
-		 */
-		public int compareTo(ServerHolder o) {
-			// If the numbers are identical, redirect based on the serverId
-			if ((this.redirectCount + (this.outRate / this.weight)) == (o.redirectCount + (o.outRate / o.weight))) {
-				return this.serverId.compareTo(o.serverId);
+		int first = -1;
+		ClientAffinityCache affinity = clientAffinity;
+		String clientKey = affinity != null ? request.getClientKey() : null;
+		if (clientKey != null) {
+			String serverId = affinity.get(clientKey);
+			if (serverId != null) {
+				for (int i = 0; i < count; i++) {
+					ServerHolder serverHolder = poolServers[candidates[i]];
+					if (serverHolder.getServer().status == LoadBalancerServer.STATUS_RUNNING && serverHolder.serverId.equals(serverId)) {
+						first = candidates[i];
+						break;
+					}
+				}
 			}
-			// If not, redirect based on the server with the least current traffic.
-			return (this.redirectCount + (this.outRate / this.weight)) > (o.redirectCount + (o.outRate / o.weight)) ? 1 : -1;
 		}
-		
-		// Original implementation
-		public int compareConnections(ServerHolder o) {
-			if ((this.redirectCount + this.connectCount) == (o.redirectCount + o.connectCount)) {
-				return this.serverId.compareTo(o.serverId);
+		String streamKey = streamAffinity ? request.getStreamKey() : null;
+		if (first < 0 && streamKey != null) {
+			first = pool.getRing().select(streamKey, poolServers, candidates, count, streamAffinityLoadFactor / 100.0);
+		}
+		if (first < 0) {
+			first = pool.strategy.select(pool, candidates, count);
+			if (first >= 0 && streamPresence && vhostName != null && request.getStreamName() != null) {
+				first = preferStreamPresence(poolServers, candidates, count, first, request);
 			}
-
-			return (this.redirectCount + this.connectCount) > (o.redirectCount + o.connectCount) ? 1 : -1;
+		}
+		if (first < 0) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_NOSERVERS, "Strategy '" + getStrategyName() + "' didn't select any server for vhost '" + vhostName + "'.");
 		}
 
-		public boolean equals(Object other) {
-			if (!(other instanceof ServerHolder))
-				return false;
-
-			return this.serverId.equals(((ServerHolder) other).serverId);
+		ServerHolder server = poolServers[first].getServer();
+		RedirectRateLimit serverLimit = server.redirectLimit != null ? server.redirectLimit : serverRedirectLimit;
+		if (serverLimit != null) {
+			// The last token may have been taken by a concurrent redirect since filterRateLimited() saw it
+			long wait = serverLimit.tryAcquire(server.redirectBucket, now);
+			if (wait > 0) {
+				throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_RETRYLATER, "Server '" + server.serverId + "' for vhost '" + vhostName + "' is above its redirect rate limit of " + serverLimit + ".", wait / 1000000);
+			}
 		}
+		poolServers[first].addRedirect();
+		redirectCount.incrementAndGet();
 
+		LoadBalancerRedirectReservation reservation = new LoadBalancerRedirectReservation(this, poolServers[first], pool.redirectAddresses[first]);
+		reservation.setTokens(vhostBucket != null ? vhostLimit : null, vhostBucket, serverLimit, serverLimit != null ? server.redirectBucket : null);
+		// Only remembered once the client has actually been sent there
+		reservation.setClientAffinity(affinity, clientKey);
+		return reservation;
 	}
 
-	private SortedSet<ServerHolder> servers = new TreeSet<ServerHolder>();
-	private Map<String, ServerHolder> serverMap = new HashMap<String, ServerHolder>();
-	private Object lock = new Object();
-	private long redirectCount = 0;
-	private LoadBalancerListener listener = null;
-
-	public LoadBalancerRedirectorBandwidth() {
+	/**
+	 * Get a redirect that is counted right away, for callers that can't tell whether the client actually
+	 * followed it (see reserveRedirect())
+	 * @param request
+	 * @return
+	 * @throws LoadBalancerRejectedException If there are no servers, or all servers are saturated
+	 */
+	public LoadBalancerRedirect requestRedirect(LoadBalancerRedirectRequest request) throws LoadBalancerRejectedException {
+		LoadBalancerRedirectReservation reservation = reserveRedirect(request);
+		reservation.confirm();
+		return reservation.getRedirect();
 	}
 
-	public void init(LoadBalancerListener listener) {
-		this.listener = listener;
+	/**
+	 * Get several redirects for this vhost at once, for example for a portal that hands out edge servers to a
+	 * batch of viewers. This is the same as the same number of single requests, including the quota and rate
+	 * limit checks, and saves only the round trips. It is best-effort: the redirects are handed out one at a time
+	 * until one is rejected, and the ones handed out so far are returned.
+	 * @param vhostName
+	 * @param count Number of redirects, at most MAX_BATCHREDIRECTS
+	 * @return Between 1 and count redirects
+	 * @throws LoadBalancerRejectedException If not even the first redirect could be handed out
+	 */
+	public List<LoadBalancerRedirect> getRedirects(String vhostName, int count) throws LoadBalancerRejectedException {
+		return requestRedirects(new LoadBalancerRedirectRequest(vhostName), count);
 	}
 
-	public long getRedirectCount() {
-		synchronized (lock) {
-			return this.redirectCount;
+	/**
+	 * @see #getRedirects(String, int)
+	 * @param request
+	 * @param count
+	 * @return
+	 * @throws LoadBalancerRejectedException
+	 */
+	public List<LoadBalancerRedirect> requestRedirects(LoadBalancerRedirectRequest request, int count) throws LoadBalancerRejectedException {
+		if (count < 1 || count > MAX_BATCHREDIRECTS) {
+			throw new IllegalArgumentException("count must be between 1 and " + MAX_BATCHREDIRECTS + ", not " + count);
+		}
+		List<LoadBalancerRedirect> ret = new ArrayList<LoadBalancerRedirect>(count);
+		for (int i = 0; i < count; i++) {
+			LoadBalancerRedirectReservation reservation;
+			try {
+				reservation = reserveRedirect(request);
+			} catch (LoadBalancerRejectedException e) {
+				if (ret.isEmpty()) {
+					throw e;
+				}
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorBandwidth.requestRedirects: Handing out " + ret.size() + " of " + count + " redirects for vhost '" + request.getVHostName() + "': " + e.getMessage());
+				break;
+			}
+			reservation.confirm();
+			ret.add(reservation.getRedirect());
 		}
+		return ret;
 	}
 
-	
-	public List<Map<String, Object>> getInfo() {
-		return getInfo(null);
+	/**
+	 * Undo a redirect from a released reservation
+	 * @param serverHolder
+	 */
+	void releaseRedirect(ServerHolder serverHolder) {
+		serverHolder.removeRedirect();
+		redirectCount.decrementAndGet();
 	}
-	
-	public List<Map<String, Object>> getInfo(String vhostName) {
-		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
-
-		synchronized (lock) {
-//			Iterator<ServerHolder> iter = serverMap.values().iterator();
 
-			/*
-			 *  Hopefully, this change doesn't break anything. This was done to make it easier to debug the full output in ServerInfo*,
-			 *  by using a sorted set of servers instead of the default.
-			 *  
-			 *  Should be safe, I guess, since "servers", as opposed to "serverMap", is used by getRedirect().
-			 */
-			Iterator<ServerHolder> iter = servers.iterator();
+	/**
+	 * Remove the servers without any redirect tokens left from the candidates
+	 * @param poolServers
+	 * @param candidates
+	 * @param count
+	 * @param now System.nanoTime()
+	 * @param vhostName Used for logging
+	 * @return The number of candidates left
+	 * @throws LoadBalancerRejectedException If every candidate is out of tokens
+	 */
+	private int filterRateLimited(ServerHolder[] poolServers, int[] candidates, int count, long now, String vhostName) throws LoadBalancerRejectedException {
+		RedirectRateLimit defaultLimit = serverRedirectLimit;
+		long minWait = Long.MAX_VALUE;
+		int left = 0;
+		for (int i = 0; i < count; i++) {
+			ServerHolder server = poolServers[candidates[i]].getServer();
+			RedirectRateLimit limit = server.redirectLimit != null ? server.redirectLimit : defaultLimit;
+			long wait = limit != null ? limit.peek(server.redirectBucket, now) : 0;
+			if (wait == 0) {
+				candidates[left++] = candidates[i];
+			}
+			else {
+				minWait = Math.min(minWait, wait);
+			}
+		}
+		if (left == 0) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_RETRYLATER, "All " + count + " available servers for vhost '" + vhostName + "' are above their redirect rate limit.", minWait / 1000000);
+		}
+		return left;
+	}
 
-			// Iterate through all the "LoadBalancerSender"-servers that are currently active
-			while (iter.hasNext()) {
-				ServerHolder serverHolder = iter.next();
-				Map<String, Object> map = new HashMap<String, Object>();
-
-				map.put("serverId", serverHolder.serverId);
-				map.put("status", LoadBalancerUtils.statusToString(serverHolder.status));
-				String redirectAddress = null;
-				// This means that the getInfo-request came through an IP address that we know belongs to a VHost on the LoadBalancerListener. Ignore all other vhosts.
-				if (vhostName != null) {
-					if (serverHolder != null && serverHolder.vhosts != null) {
-						if (serverHolder.vhosts.containsKey(vhostName)) {
-							Map<String, Object> vhostProperties = (Map<String, Object>)serverHolder.vhosts.get(vhostName);
-							// We found a redirect address for this VHost, and everything works as intended. Remember this VHost's redirect address, so we can add it later on
-							if (vhostProperties.containsKey("redirectAddress") && vhostProperties.get("redirectAddress") != null) {
-								redirectAddress = (String)vhostProperties.get("redirectAddress");
-							}
-							// No redirect address for this VHost, but we have other properties. Log this as an error.
-							else { // !vhostProperties.containsKey("redirectAddress")
-								// This is probably either one or more servers with a configuration error, or a redirect request through a VHost that isn't intended to be used for load balancing
-								WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getInfo: Got a redirect request from vhost '" + vhostName + "', but we couldn't find any redirect address for this vhost. Check the relevant VHost.xml config on '" + serverHolder.redirect + "'");
-							}
-						}
-						// The requested VHost doesn't exist in the LoadBalancer config for this server. 
-						else { // !serverHolder.vhosts.containsKey(vhostName)
-							// Same as above, this is probably either one or more servers with a configuration error, or a redirect request through a VHost that isn't intended to be used for load balancing 
-							WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getInfo: Got a redirect request from vhost '" + vhostName + "', but we couldn't find any properties for this vhost on the server '" + serverHolder.redirect + "'");
-						}
-					}
-					else { // serverHolder == null || serverHolder.vhosts == null
-						// This means that *no* vhosts are known at all for this particular server (serverHolder).
-						// Likely cause for this is one or more servers with a "stock" LoadBalancer, i.e. not running VHostloadBalancer
-						WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorConcurrentConnects.getInfo: Got a redirect request from vhost '" + vhostName + "', but we have a server with no VHost data. Check the modules and configs on '" + serverHolder.redirect + "'");
-					}
-				}
+	/**
+	 * Swap the server picked by the strategy for the least loaded server that already has the stream, unless that
+	 * server's load per weight is more than streamPresenceLoadFactor percent of the picked server's
+	 * @param poolServers
+	 * @param candidates
+	 * @param count
+	 * @param picked Index in poolServers of the server picked by the strategy
+	 * @param request
+	 * @return Index in poolServers
+	 */
+	private int preferStreamPresence(ServerHolder[] poolServers, int[] candidates, int count, int picked, LoadBalancerRedirectRequest request) {
+		String vhostName = request.getVHostName();
+		String appName = request.getAppName();
+		String streamName = request.getStreamName();
+		if (poolServers[picked].hasStream(vhostName, appName, streamName)) {
+			return picked;
+		}
 
-				
-				if (redirectAddress != null) {
-					// This means that we found a redirect address for this particular VHost, so let's use it
-					map.put("redirect", redirectAddress);
-				}
-				else {
-					 // This will use the default redirectAddress from Server.xml, for legacy servers. Possibly not a good idea in all use-cases.
-					//WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorConcurrentConnects.getInfo: Adding default redirect address '" + serverHolder.redirect + "' to the server list for VHost '" + vhostName + "'.");
-					map.put("redirect", serverHolder.redirect);
-				}
+		int best = -1;
+		for (int i = 0; i < count; i++) {
+			ServerHolder serverHolder = poolServers[candidates[i]];
+			if (!serverHolder.hasStream(vhostName, appName, streamName)) {
+				continue;
+			}
+			if (best < 0 || ServerHolder.compareLoad(Math.min(serverHolder.getEstimatedOutRate(), MAX_LOAD), serverHolder.getScaledWeight(), Math.min(poolServers[best].getEstimatedOutRate(), MAX_LOAD), poolServers[best].getScaledWeight()) < 0) {
+				best = candidates[i];
+			}
+		}
+		if (best < 0) {
+			return picked;
+		}
 
-				/*
-				 * Uncomment the following three lines if you want to output information about all available vhosts.
-				 * It doesn't make any sense from a practical point of view, but could be helpful while debugging.
-				 * Note: The LoadBalancerUtils is closed source, so LoadBalancerUtils.serverInfoToXMLStr() is not VHosts-aware, and
-				 * will just output the information in a single XML tag. The JSON output works better in this regard. 
-				 */
-				/*if (serverHolder.vhosts != null && serverHolder.vhosts.size() > 0) {
-					map.put("VHosts", serverHolder.vhosts);
-				}*/
-
-				map.put("weight", new Integer(serverHolder.weight));
-				map.put("inRate", new Integer(serverHolder.inRate));
-				map.put("outRate", new Integer(serverHolder.outRate));
-				map.put("connectCount", new Integer(serverHolder.connectCount));
-				map.put("redirectCount", new Integer(serverHolder.redirectCount));
-				map.put("debug", new Float(serverHolder.outRate / serverHolder.weight));
-
-				while (true) {
-					if (this.listener == null) {
-						break;
-					}
+		// Include the redirect we're about to hand out, so an idle server isn't passed over for any loaded one
+		double bestLoad = (double)(poolServers[best].getEstimatedOutRate() + poolServers[best].redirectRate) / poolServers[best].getScaledWeight();
+		double pickedLoad = (double)(poolServers[picked].getEstimatedOutRate() + poolServers[picked].redirectRate) / poolServers[picked].getScaledWeight();
+		return bestLoad * 100 <= pickedLoad * streamPresenceLoadFactor ? best : picked;
+	}
 
-					LoadBalancerServer loadBalancerServer = this.listener.getServer(serverHolder.serverId);
-					if (loadBalancerServer == null) {
-						break;
-					}
-					map.put("lastMessage", loadBalancerServer.getLastMessageReceiveTimeStr());
-					break;
-				}
+	/**
+	 * Remove the candidates above the active tier. If none of the candidates are in the active tiers, the lowest
+	 * tier with candidates left is used instead.
+	 * @param pool
+	 * @param candidates
+	 * @param count
+	 * @return The number of candidates left
+	 */
+	private int filterTiers(VHostPool pool, int[] candidates, int count) {
+		int maxTier = pool.tierLevels[updateActiveTier(pool)];
+		int minTier = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			minTier = Math.min(minTier, pool.tiers[candidates[i]]);
+		}
+		maxTier = Math.max(maxTier, minTier);
 
-				ret.add(map);
+		int left = 0;
+		for (int i = 0; i < count; i++) {
+			if (pool.tiers[candidates[i]] <= maxTier) {
+				candidates[left++] = candidates[i];
 			}
 		}
-		return ret;
+		return left;
 	}
 
-	public long getTotalConnections() {
-		long ret = 0;
-		synchronized (lock) {
-			Iterator<ServerHolder> iter = serverMap.values().iterator();
-			while (iter.hasNext()) {
-				ServerHolder serverHolder = iter.next();
-				ret += serverHolder.connectCount;
-				ret += serverHolder.redirectCount;
-			}
+	/**
+	 * Open the next tier when the active tiers are above the tier threshold, and close the highest tier when the
+	 * tiers below it have dropped below the threshold minus the hysteresis. The gap between the two keeps the pool
+	 * from flapping between tiers while the load hovers around the threshold.
+	 * @param pool
+	 * @return The new index of the active tier in pool.tierLevels
+	 */
+	private int updateActiveTier(VHostPool pool) {
+		int threshold = tierThreshold;
+		int oldActive = pool.activeTier.get();
+		int active = oldActive;
+		while (active < pool.tierLevels.length - 1 && isTierAbove(pool, pool.tierLevels[active], threshold)) {
+			active++;
+		}
+		while (active > 0 && !isTierAbove(pool, pool.tierLevels[active - 1], threshold - tierHysteresis)) {
+			active--;
 		}
+		if (active != oldActive && pool.activeTier.compareAndSet(oldActive, active)) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.updateActiveTier: Tiers up to " + pool.tierLevels[active] + " are now used for vhost '" + pool.vhostName + "'.");
+		}
+		return active;
+	}
 
-		return ret;
+	/**
+	 * Check if the servers up to a tier are at or above a utilization, as a whole. Servers without a known capacity
+	 * and servers that are being drained are left out.
+	 * @param pool
+	 * @param tier
+	 * @param thresholdPercent
+	 * @return false if none of the servers have a known capacity
+	 */
+	private static boolean isTierAbove(VHostPool pool, int tier, int thresholdPercent) {
+		long load = 0;
+		long capacity = 0;
+		for (int i = 0; i < pool.servers.length; i++) {
+			ServerHolder server = pool.servers[i].getServer();
+			if (pool.tiers[i] <= tier && server.capacity > 0 && server.drain == null) {
+				load += Math.min(server.getEstimatedOutRate(), MAX_LOAD);
+				capacity += Math.min(server.capacity, MAX_LOAD);
+			}
+		}
+		return capacity > 0 && load * 100 >= capacity * thresholdPercent;
 	}
 
-	public LoadBalancerRedirect getRedirect() {
-		return getRedirect(null);
+	/**
+	 * @param vhostName
+	 * @return The token bucket for a vhost with a redirect rate limit
+	 */
+	private AtomicLong getVHostRedirectBucket(String vhostName) {
+		AtomicLong bucket = vhostRedirectBuckets.get(vhostName);
+		if (bucket == null) {
+			AtomicLong newBucket = RedirectRateLimit.newBucket();
+			bucket = vhostRedirectBuckets.putIfAbsent(vhostName, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		return bucket;
 	}
-	
-	public LoadBalancerRedirect getRedirect(String vhostName) {
-		LoadBalancerRedirect ret = null;
 
-		synchronized (lock) {
-			while (true) {
+	/**
+	 * Check the vhost's quota against the load in the last status messages.
+	 * 
+	 * A vhost below its guaranteed share is always let through. Above it, it may use whatever capacity isn't
+	 * guaranteed to other vhosts that are below their share, up to its own maximum.
+	 * 
+	 * All figures are summed up by onMessage(), so this only compares numbers. Only pools with per-vhost load can
+	 * be checked, since the load for a single vhost is unknown otherwise.
+	 * @param pool
+	 * @param vhostName
+	 * @throws LoadBalancerRejectedException If the vhost is over its quota
+	 */
+	private void checkQuota(VHostPool pool, String vhostName) throws LoadBalancerRejectedException {
+		QuotaState state = quotaState;
+		if (state == null || state.capacity <= 0) {
+			return;
+		}
+		VHostQuota quota = vhostQuotas.get(vhostName);
+		if (!pool.perVHost) {
+			if (quota != null && quotaWarnings.putIfAbsent(vhostName, Boolean.TRUE) == null) {
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.checkQuota: The quota for vhost '" + vhostName + "' (" + quota + ") is not enforced, since some of its servers don't report per-vhost load.");
+			}
+			return;
+		}
 
-				if (servers.size() <= 0) {
-					break;
-				}
+		if (quota != null) {
+			Long used = state.vhostLoads.get(vhostName);
+			long vhostLoad = used != null ? used.longValue() : 0;
+			if (vhostLoad >= quota.getMaximum(state.capacity)) {
+				throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_OVERQUOTA, "Vhost '" + vhostName + "' is using " + vhostLoad + " of its maximum " + quota.getMaximum(state.capacity) + " (" + quota + ").");
+			}
+			if (vhostLoad < quota.getMinimum(state.capacity)) {
+				return;
+			}
+		}
+		// This vhost uses all of its own guaranteed share by now, so the unused guarantees all belong to others
+		if (state.clusterLoad + state.totalReservedUnused >= state.capacity) {
+			throw new LoadBalancerRejectedException(LoadBalancerRejectedException.REASON_OVERQUOTA, "Vhost '" + vhostName + "' is above its guaranteed share (" + (quota != null ? quota : VHostQuota.UNLIMITED) + "), and the remaining capacity is guaranteed to other vhosts.");
+		}
+	}
 
-				
-				ServerHolder first = servers.first();
-				if (first == null) {
-					WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorConcurrentConnects.getRedirect: No servers.");
-					break;
-				}
+	/**
+	 * Recalculate the quota figures for all servers. Must be called while holding the lock.
+	 */
+	private void updateQuotaState() {
+		quotaCapacity = 0;
+		quotaClusterLoad = 0;
+		quotaVHostLoads.clear();
+		Iterator<ServerHolder> iter = serverMap.values().iterator();
+		while (iter.hasNext()) {
+			ServerHolder serverHolder = iter.next();
+			if (serverHolder.status == LoadBalancerServer.STATUS_RUNNING) {
+				quotaCapacity += Math.min(serverHolder.capacity, MAX_LOAD);
+			}
+			addQuotaLoad(serverHolder);
+		}
+		publishQuotaState();
+	}
 
-				servers.remove(first);
-				first.redirectCount++;
-				servers.add(first);
+	/**
+	 * Replace the load of a single server in the quota figures, after a status message from it. Must be called while
+	 * holding the lock.
+	 * @param serverHolder
+	 */
+	private void updateQuotaLoad(ServerHolder serverHolder) {
+		if (vhostQuotas.isEmpty()) {
+			return;
+		}
+		quotaClusterLoad -= serverHolder.quotaOutRate;
+		Map<String, Long> oldLoads = serverHolder.quotaVHostLoads;
+		if (oldLoads != null) {
+			Iterator<Map.Entry<String, Long>> iter = oldLoads.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String, Long> entry = iter.next();
+				Long total = quotaVHostLoads.get(entry.getKey());
+				if (total != null) {
+					quotaVHostLoads.put(entry.getKey(), new Long(total.longValue() - entry.getValue().longValue()));
+				}
+			}
+		}
+		addQuotaLoad(serverHolder);
+		publishQuotaState();
+	}
 
-				ret = new LoadBalancerRedirect(first.getRedirectAddress(vhostName));
-				redirectCount++;
-				break;
+	/**
+	 * Add the load of a running server to the quota figures, and remember it on the server so it can be replaced later
+	 * @param serverHolder
+	 */
+	private void addQuotaLoad(ServerHolder serverHolder) {
+		serverHolder.quotaOutRate = 0;
+		serverHolder.quotaVHostLoads = null;
+		if (serverHolder.status != LoadBalancerServer.STATUS_RUNNING || vhostQuotas.isEmpty()) {
+			return;
+		}
+		serverHolder.quotaOutRate = Math.min(serverHolder.outRate, MAX_LOAD);
+		quotaClusterLoad += serverHolder.quotaOutRate;
+		Map<String, ServerHolder> vhostHolders = serverHolder.vhostHolders;
+		if (vhostHolders == null) {
+			return;
+		}
+		// Only the vhosts with a quota need their own figures
+		Map<String, Long> loads = new HashMap<String, Long>();
+		Iterator<String> iter = vhostQuotas.keySet().iterator();
+		while (iter.hasNext()) {
+			String vhostName = iter.next();
+			ServerHolder vhostHolder = vhostHolders.get(vhostName);
+			if (vhostHolder == null) {
+				continue;
 			}
+			long load = Math.min(vhostHolder.outRate, MAX_LOAD);
+			loads.put(vhostName, new Long(load));
+			Long total = quotaVHostLoads.get(vhostName);
+			quotaVHostLoads.put(vhostName, new Long((total != null ? total.longValue() : 0) + load));
 		}
+		serverHolder.quotaVHostLoads = loads;
+	}
 
-		return ret;
+	/**
+	 * Publish the quota figures for checkQuota(). Must be called while holding the lock.
+	 */
+	private void publishQuotaState() {
+		Map<String, VHostQuota> quotas = vhostQuotas;
+		if (quotas.isEmpty()) {
+			quotaState = null;
+			return;
+		}
+		long totalReservedUnused = 0;
+		Iterator<Map.Entry<String, VHostQuota>> iter = quotas.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, VHostQuota> entry = iter.next();
+			Long used = quotaVHostLoads.get(entry.getKey());
+			totalReservedUnused += Math.max(entry.getValue().getMinimum(quotaCapacity) - (used != null ? used.longValue() : 0), 0);
+		}
+		quotaState = new QuotaState(quotaCapacity, quotaClusterLoad, new HashMap<String, Long>(quotaVHostLoads), totalReservedUnused);
 	}
 
 	public void onMessage(LoadBalancerServer loadBalancerServer, LoadBalancerMessage message) {
@@ -303,84 +1962,479 @@ public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector
 		loadBalancerServer.handleMessage(message);
 
 		Map<String, String> values = message.getValues();
-		synchronized (lock) {
-			String connectCountStr = values.get(LoadBalancerMonitorDefault.MSGFIELDS_CONNECTCOUNT);
-			int connectCount = -1;
-			if (connectCountStr != null) {
-				try {
-					connectCount = Integer.parseInt(connectCountStr);
-				} catch (Exception e) {
-				}
+
+		String serverId = loadBalancerServer.getServerId();
+
+		// Parse everything before taking the lock, since none of this depends on the current server table. -1 means "keep the previous value".
+		int connectCount = (int)Math.min(parseCounter(serverId, LoadBalancerMonitorDefault.MSGFIELDS_CONNECTCOUNT, values.get(LoadBalancerMonitorDefault.MSGFIELDS_CONNECTCOUNT)), Integer.MAX_VALUE);
+
+		// Senders with "loadBalancerSenderBinaryStatus" send the rates and the per-vhost load in a single binary field
+		BinaryStatus binaryStatus = null;
+		String binaryStatusStr = values.get(LoadBalancerMonitorVHost.MSGFIELDS_BINARYSTATUS);
+		if (binaryStatusStr != null) {
+			binaryStatus = parseBinaryStatus(serverId, binaryStatusStr);
+		}
+
+		// Prefer the 64-bit rates from LoadBalancerMonitorVHost, since the default fields will overflow on 10G+ servers
+		String inRateStr = values.get(LoadBalancerMonitorVHost.MSGFIELDS_INRATE64);
+		String inRateField = LoadBalancerMonitorVHost.MSGFIELDS_INRATE64;
+		if (inRateStr == null) {
+			inRateStr = values.get(LoadBalancerMonitorDefault.MSGFIELDS_INRATE);
+			inRateField = LoadBalancerMonitorDefault.MSGFIELDS_INRATE;
+		}
+		long inRate = parseCounter(serverId, inRateField, inRateStr);
+
+		String outRateStr = values.get(LoadBalancerMonitorVHost.MSGFIELDS_OUTRATE64);
+		String outRateField = LoadBalancerMonitorVHost.MSGFIELDS_OUTRATE64;
+		if (outRateStr == null) {
+			outRateStr = values.get(LoadBalancerMonitorDefault.MSGFIELDS_OUTRATE);
+			outRateField = LoadBalancerMonitorDefault.MSGFIELDS_OUTRATE;
+		}
+		long outRate = parseCounter(serverId, outRateField, outRateStr);
+		if (binaryStatus != null) {
+			inRate = binaryStatus.inRate >= 0 ? binaryStatus.inRate : inRate;
+			outRate = binaryStatus.outRate >= 0 ? binaryStatus.outRate : outRate;
+		}
+
+		String redirect = loadBalancerServer.getRedirect();
+		int status = loadBalancerServer.getStatus();
+		CustomProperties properties = null;
+		Map<String, long[]> vhostLoads = null;
+		Map<String, StreamPresenceFilter> streamFilters = null;
+
+		long configVersion = parseCounter(serverId, LoadBalancerMonitorVHost.MSGFIELDS_CONFIGVERSION, values.get(LoadBalancerMonitorVHost.MSGFIELDS_CONFIGVERSION));
+		String customProperties = values.get("customProperties");
+		if (customProperties != null) {
+			properties = getCustomProperties(serverId, customProperties);
+			properties.configVersion = configVersion;
+			vhostLoads = properties.vhostLoads;
+			streamFilters = properties.streamFilters;
+		}
+		else if (configVersion >= 0) {
+			// Senders with "loadBalancerSenderConfigDelta" only send customProperties when they change
+			// Until the next resync, a server without (current) customProperties keeps the settings it already has
+			properties = customPropertiesCache.get(serverId);
+			if (properties == null) {
+				// Probably restarted since the last customProperties. New servers use their Server.xml redirect address.
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorBandwidth.onMessage: Waiting for the customProperties of server '" + serverId + "'.");
 			}
-			
-			String inRateStr = values.get(LoadBalancerMonitorDefault.MSGFIELDS_INRATE);
-			int inRate = -1;
-			if (inRateStr != null) {
-				try {
-					inRate = Integer.parseInt(inRateStr);
-				} catch (Exception e) {
-				}
+			else if (properties.configVersion != configVersion) {
+				// The message with the new customProperties was lost
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorBandwidth.onMessage: Server '" + serverId + "' has customProperties version " + configVersion + ", but we only have version " + properties.configVersion + ".");
+				customPropertiesCache.remove(serverId);
+				properties = null;
 			}
-			
-			String outRateStr = values.get(LoadBalancerMonitorDefault.MSGFIELDS_OUTRATE);
-			int outRate = -1;
-			if (outRateStr != null) {
-				try {
-					outRate = Integer.parseInt(outRateStr);
-				} catch (Exception e) {
-				}
+		}
+		boolean awaitingConfig = properties == null && configVersion >= 0;
+		if (status == LoadBalancerServer.STATUS_STOPPED) {
+			// The sender is shutting down, so there is no point in keeping its customProperties
+			customPropertiesCache.remove(serverId);
+		}
+		String vhostLoadsStr = values.get(LoadBalancerMonitorVHost.MSGFIELDS_VHOSTLOADS);
+		if (vhostLoadsStr != null) {
+			// Small, and different in every message, so this is always parsed
+			Object json = JSONValue.parse(vhostLoadsStr);
+			if (json instanceof Map) {
+				vhostLoads = parseVHostLoads((Map<String, Object>)json);
+				streamFilters = parseStreamPresence((Map<String, Object>)json);
 			}
+		}
+		if (binaryStatus != null) {
+			vhostLoads = binaryStatus.vhostLoads;
+			streamFilters = binaryStatus.streamFilters;
+		}
 
-			String serverId = loadBalancerServer.getServerId();
-			String redirect = loadBalancerServer.getRedirect();
-			int status = loadBalancerServer.getStatus();
-			int checkWeight = 1;
-			
-			
+		synchronized (lock) {
 			ServerHolder serverHolder = serverMap.get(serverId);
 			if (serverHolder == null) {
 				serverHolder = new ServerHolder(serverId);
 				serverMap.put(serverId, serverHolder);
 			}
 
-			servers.remove(serverHolder);
-			
-			if (values.get("customProperties") != null) {
-				String customProperties =  values.get("customProperties");
-//				System.out.println("customProperties:\t" + customProperties + "\n");
-//				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerMessage=>customProperties:	" + customProperties);
-				Object json = JSONValue.parse(customProperties);
-				JSONObject jsonServer = (JSONObject)json;
-				JSONObject vhosts = (JSONObject)jsonServer.get("vhosts");
-				Object rawWeight = jsonServer.get("weight");
+			boolean wasRunning = serverHolder.status == LoadBalancerServer.STATUS_RUNNING;
+			boolean isRunning = status == LoadBalancerServer.STATUS_RUNNING;
+			// The pools only need to be rebuilt if the set of running servers or their redirect addresses change
+			boolean rebuildPools = wasRunning != isRunning;
+			boolean updateQuota = false;
+
+			if (properties != null && properties.vhosts != null && properties.vhosts != serverHolder.vhosts && !properties.vhosts.equals(serverHolder.vhosts)) {
+				serverHolder.vhosts = properties.vhosts;
+				rebuildPools = rebuildPools || isRunning;
+			}
+			if (redirect != null && !redirect.equals(serverHolder.redirect)) {
+				rebuildPools = rebuildPools || isRunning;
+			}
 
-				if (rawWeight instanceof Long) {
-					checkWeight = ((Long)jsonServer.get("weight")).intValue();
+			// Legacy senders without customProperties get the default weight. Delta senders keep theirs until the next resync.
+			int checkWeight = properties != null ? properties.weight : (awaitingConfig ? serverHolder.weight : 1);
+			if (serverHolder.weightOverride > 0) {
+				checkWeight = serverHolder.weightOverride;
+			}
+			if (checkWeight > 0 && checkWeight != serverHolder.weight) {
+				serverHolder.weight = checkWeight;
+				// Some strategies precompute per-pool values from the weights
+				rebuildPools = rebuildPools || isRunning;
+			}
+			if (properties != null) {
+				if (properties.capacity != serverHolder.capacity) {
+					serverHolder.capacity = properties.capacity;
+					updateQuota = true;
 				}
-				else {
-					// Backwards compatilibity: https://github.com/availo/wowza-vhost-loadbalancer/issues/1
-					checkWeight = Integer.parseInt((String)jsonServer.get("weight"));
+				serverHolder.group = properties.group;
+				serverHolder.capabilities = properties.capabilities;
+				if (properties.tier != serverHolder.tier) {
+					serverHolder.tier = properties.tier;
+					rebuildPools = rebuildPools || isRunning;
 				}
-
-				serverHolder.vhosts = (Map<String, Object>)vhosts;
-
+				RedirectRateLimit redirectLimit = properties.redirectLimit;
+				RedirectRateLimit oldLimit = serverHolder.redirectLimit;
+				if (redirectLimit == null || oldLimit == null || redirectLimit.getRate() != oldLimit.getRate() || redirectLimit.getBurst() != oldLimit.getBurst()) {
+					serverHolder.redirectLimit = redirectLimit;
+				}
+			}
+			if (properties != null || vhostLoadsStr != null || binaryStatus != null) {
+				// Sent with the load, so it is current even while a delta sender waits for its customProperties
+				serverHolder.streamPresence = streamFilters;
+			}
+			// Missing or invalid counters keep their previous value, instead of making the server look idle
+			if (connectCount < 0) {
+				connectCount = serverHolder.connectCount;
+			}
+			if (inRate < 0) {
+				inRate = serverHolder.inRate;
+			}
+			if (outRate < 0) {
+				outRate = serverHolder.outRate;
 			}
 
-			serverHolder.status = status;
-			serverHolder.connectCount = connectCount;
-			serverHolder.redirectCount = 0;
+			serverHolder.updateLoad(connectCount, outRate, defaultRedirectRate);
 			serverHolder.redirect = redirect;
 			serverHolder.inRate = inRate;
-			serverHolder.outRate = outRate;
-			
-			if (checkWeight > 0) {
-				serverHolder.weight = checkWeight;
+			if (!isRunning) {
+				serverHolder.redirectCount.set(0);
+			}
+			if (vhostLoads != null && updateVHostHolders(serverHolder, vhostLoads, isRunning)) {
+				rebuildPools = rebuildPools || isRunning;
+			}
+			SlowStart newSlowStart = null;
+			if (isRunning && !wasRunning && (slowStartTime > 0 || slowStartReports > 0)) {
+				newSlowStart = new SlowStart(System.currentTimeMillis(), slowStartTime, slowStartReports, slowStartInitialWeight);
+			}
+			serverHolder.updateSlowStart(isRunning ? newSlowStart : null);
+			Drain drain = serverHolder.drain;
+			if (drain != null && !drain.drained && connectCount == 0 && drain.getPercent(System.currentTimeMillis()) <= 0) {
+				drain.drained = true;
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).info("LoadBalancerRedirectorBandwidth.onMessage: Server '" + serverId + "' is drained, and has no connections left.");
+			}
+			serverHolder.status = status;
+
+			if (rebuildPools) {
+				publishPools();
+			}
+			// The quota capacity only changes with the running servers, their capacity or their vhosts
+			if (rebuildPools || updateQuota) {
+				updateQuotaState();
+			}
+			else {
+				updateQuotaLoad(serverHolder);
+			}
+		}
+	}
+
+	/**
+	 * Take the per-vhost load figures out of the vhost properties. They change with every message, and would
+	 * otherwise make the vhost properties look changed (and the pools rebuilt) every time.
+	 * @param vhosts
+	 * @return connectCount and outRate per vhost (-1 if missing). Only vhosts with load figures are included.
+	 */
+	private static Map<String, long[]> parseVHostLoads(Map<String, Object> vhosts) {
+		Map<String, long[]> vhostLoads = new HashMap<String, long[]>();
+		Iterator<Map.Entry<String, Object>> iter = vhosts.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			if (!(entry.getValue() instanceof Map)) {
+				continue;
+			}
+			Map<String, Object> vhostProperties = (Map<String, Object>)entry.getValue();
+			Object rawConnectCount = vhostProperties.remove(LoadBalancerMonitorVHost.VHOSTFIELDS_CONNECTCOUNT);
+			Object rawOutRate = vhostProperties.remove(LoadBalancerMonitorVHost.VHOSTFIELDS_OUTRATE);
+			if (rawConnectCount == null && rawOutRate == null) {
+				continue;
+			}
+			long[] load = new long[2];
+			load[0] = Math.min(toLong(rawConnectCount, -1), Integer.MAX_VALUE);
+			load[1] = toLong(rawOutRate, -1);
+			vhostLoads.put(entry.getKey(), load);
+		}
+		return vhostLoads;
+	}
+
+	/**
+	 * Decode a binary status field. Unknown versions and broken fields are ignored, and the text fields are used instead.
+	 * @param serverId
+	 * @param binaryStatusStr
+	 * @return The decoded status, or null if it couldn't be decoded
+	 */
+	private static BinaryStatus parseBinaryStatus(String serverId, String binaryStatusStr) {
+		BinaryStatusBuffer buffer = statusBuffers.get();
+		if (!buffer.readBase64(binaryStatusStr)) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.parseBinaryStatus: Server '" + serverId + "' sent an invalid '" + LoadBalancerMonitorVHost.MSGFIELDS_BINARYSTATUS + "' field.");
+			return null;
+		}
+		try {
+			int version = buffer.getByte();
+			if (version != LoadBalancerMonitorVHost.BINARYSTATUS_VERSION) {
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).debug("LoadBalancerRedirectorBandwidth.parseBinaryStatus: Server '" + serverId + "' sent binary status version " + version + ". Using the text fields instead.");
+				return null;
+			}
+			BinaryStatus status = new BinaryStatus();
+			status.inRate = buffer.getLong();
+			status.outRate = buffer.getLong();
+			int vhostCount = buffer.getShort();
+			status.vhostLoads = new HashMap<String, long[]>();
+			for (int i = 0; i < vhostCount; i++) {
+				String vhostName = buffer.getString();
+				long[] load = new long[2];
+				load[0] = buffer.getInt();
+				load[1] = buffer.getLong();
+				if (load[0] >= 0 || load[1] >= 0) {
+					status.vhostLoads.put(vhostName, load);
+				}
+				int words = buffer.getShort();
+				if (words > 0) {
+					long[] bits = new long[words];
+					for (int j = 0; j < words; j++) {
+						bits[j] = buffer.getLong();
+					}
+					StreamPresenceFilter filter = StreamPresenceFilter.fromBits(bits);
+					if (filter != null) {
+						if (status.streamFilters == null) {
+							status.streamFilters = new HashMap<String, StreamPresenceFilter>();
+						}
+						status.streamFilters.put(vhostName, filter);
+					}
+				}
+			}
+			return status;
+		}
+		catch (BufferUnderflowException e) {
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.parseBinaryStatus: Server '" + serverId + "' sent a truncated '" + LoadBalancerMonitorVHost.MSGFIELDS_BINARYSTATUS + "' field.");
+			return null;
+		}
+	}
+
+	/**
+	 * Convert the vhost properties from the sender to typed, interned tables
+	 * @param vhosts
+	 * @return
+	 */
+	private static Map<String, VHostProperties> parseVHostProperties(Map<String, Object> vhosts) {
+		Map<String, VHostProperties> ret = new HashMap<String, VHostProperties>();
+		Iterator<Map.Entry<String, Object>> iter = vhosts.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			Object rawAddress = null;
+			long weight = 0;
+			long tier = -1;
+			if (entry.getValue() instanceof Map) {
+				Map<String, Object> vhostProperties = (Map<String, Object>)entry.getValue();
+				rawAddress = vhostProperties.get("redirectAddress");
+				weight = Math.max(toLong(vhostProperties.get(LoadBalancerMonitorVHost.VHOSTFIELDS_WEIGHT), 0), 0);
+				tier = toLong(vhostProperties.get(LoadBalancerMonitorVHost.VHOSTFIELDS_TIER), -1);
+			}
+			ret.put(entry.getKey().intern(), new VHostProperties(rawAddress != null ? rawAddress.toString() : null, (int)Math.min(weight, MAX_WEIGHT), (int)Math.min(Math.max(tier, -1), Integer.MAX_VALUE)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the parsed customProperties from a status message, reusing the previous parse if they haven't changed
+	 * @param serverId
+	 * @param customProperties
+	 * @return
+	 */
+	private CustomProperties getCustomProperties(String serverId, String customProperties) {
+		CustomProperties previous = customPropertiesCache.get(serverId);
+		if (previous != null && previous.source.equals(customProperties)) {
+			return previous;
+		}
+		CustomProperties parsed = new CustomProperties(customProperties);
+		customPropertiesCache.put(serverId, parsed);
+		return parsed;
+	}
+
+	/**
+	 * Take the stream presence filters out of the vhost properties, for the same reason as parseVHostLoads()
+	 * @param vhosts
+	 * @return The filter per vhost, or null if the sender doesn't report its streams
+	 */
+	private static Map<String, StreamPresenceFilter> parseStreamPresence(Map<String, Object> vhosts) {
+		Map<String, StreamPresenceFilter> filters = null;
+		Iterator<Map.Entry<String, Object>> iter = vhosts.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			if (!(entry.getValue() instanceof Map)) {
+				continue;
+			}
+			Object rawStreams = ((Map<String, Object>)entry.getValue()).remove(LoadBalancerMonitorVHost.VHOSTFIELDS_STREAMS);
+			StreamPresenceFilter filter = rawStreams instanceof String ? StreamPresenceFilter.decode((String)rawStreams) : null;
+			if (filter != null) {
+				if (filters == null) {
+					filters = new HashMap<String, StreamPresenceFilter>();
+				}
+				filters.put(entry.getKey(), filter);
+			}
+		}
+		return filters;
+	}
+
+	/**
+	 * Update (or create) the per-vhost holders for a server. Must be called while holding the lock.
+	 * @param serverHolder
+	 * @param vhostLoads
+	 * @param isRunning
+	 * @return true if the pools need to be rebuilt, because holders or weights were added, removed or changed
+	 */
+	private boolean updateVHostHolders(ServerHolder serverHolder, Map<String, long[]> vhostLoads, boolean isRunning) {
+		Map<String, ServerHolder> oldHolders = serverHolder.vhostHolders;
+		Map<String, ServerHolder> newHolders = new HashMap<String, ServerHolder>();
+		boolean changed = oldHolders == null ? !vhostLoads.isEmpty() : oldHolders.size() != vhostLoads.size();
+
+		Iterator<Map.Entry<String, long[]>> iter = vhostLoads.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, long[]> entry = iter.next();
+			long[] load = entry.getValue();
+			ServerHolder vhostHolder = oldHolders != null ? oldHolders.get(entry.getKey()) : null;
+			if (vhostHolder == null) {
+				vhostHolder = new ServerHolder(serverHolder.serverId, serverHolder);
+				changed = true;
 			}
+			// Without a vhost weight, the vhost gets the same share of the server as the server gets of the cluster
+			VHostProperties vhostProperties = serverHolder.vhosts != null ? serverHolder.vhosts.get(entry.getKey()) : null;
+			int weight = vhostProperties != null && vhostProperties.weight > 0 ? Math.min(vhostProperties.weight, MAX_WEIGHT) : serverHolder.weight;
+			if (weight != vhostHolder.weight) {
+				vhostHolder.weight = weight;
+				changed = true;
+			}
+			vhostHolder.updateLoad(load[0] >= 0 ? (int)load[0] : vhostHolder.connectCount, load[1] >= 0 ? load[1] : vhostHolder.outRate, defaultRedirectRate);
+			if (!isRunning) {
+				vhostHolder.redirectCount.set(0);
+			}
+			newHolders.put(entry.getKey(), vhostHolder);
+		}
+		serverHolder.vhostHolders = newHolders;
+		return changed;
+	}
+
+	/**
+	 * Convert a value from customProperties to a long. json-simple parses integers as Long, but older senders use strings.
+	 * @param rawValue
+	 * @param defaultValue
+	 * @return
+	 */
+	private static long toLong(Object rawValue, long defaultValue) {
+		if (rawValue instanceof Number) {
+			return ((Number)rawValue).longValue();
+		}
+		if (rawValue instanceof String) {
+			try {
+				return Long.parseLong(((String)rawValue).trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Parse a numeric counter from a status message as a 64-bit value.
+	 * @param serverId Used for logging
+	 * @param fieldName Used for logging
+	 * @param value
+	 * @return The counter, or -1 if it is missing, negative or not a number
+	 */
+	private long parseCounter(String serverId, String fieldName, String value) {
+		if (value == null) {
+			return -1;
+		}
+		long ret = -1;
+		try {
+			ret = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			try {
+				// Some monitors report rates with decimals
+				ret = (long)Double.parseDouble(value.trim());
+			} catch (NumberFormatException e2) {
+				WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.onMessage: Ignoring invalid value '" + value + "' for '" + fieldName + "' from server '" + serverId + "'.");
+				return -1;
+			}
+		}
+		if (ret < 0) {
+			// Most likely a legacy sender with an overflowing 32-bit counter
+			WMSLoggerFactory.getLogger(LoadBalancerRedirectorBandwidth.class).warn("LoadBalancerRedirectorBandwidth.onMessage: Ignoring negative value '" + value + "' for '" + fieldName + "' from server '" + serverId + "'.");
+			return -1;
+		}
+		return ret;
+	}
 
-			if (status == LoadBalancerServer.STATUS_RUNNING) {
-				servers.add(serverHolder);
+	/**
+	 * Rebuild and publish the vhost pools from all running servers. Must be called while holding the lock.
+	 */
+	private void publishPools() {
+		List<ServerHolder> running = new ArrayList<ServerHolder>(serverMap.size());
+		Iterator<ServerHolder> iter = serverMap.values().iterator();
+		while (iter.hasNext()) {
+			ServerHolder serverHolder = iter.next();
+			if (serverHolder.status == LoadBalancerServer.STATUS_RUNNING) {
+				running.add(serverHolder);
+			}
+		}
+
+		ServerHolder[] snapshot = running.toArray(new ServerHolder[running.size()]);
+		Arrays.sort(snapshot, new Comparator<ServerHolder>() {
+			public int compare(ServerHolder a, ServerHolder b) {
+				return a.serverId.compareTo(b.serverId);
+			}
+		});
+
+		// Every vhost that at least one running sender knows about gets its own pool
+		Set<String> vhostNames = new TreeSet<String>();
+		for (int i = 0; i < snapshot.length; i++) {
+			Map<String, VHostProperties> vhosts = snapshot[i].vhosts;
+			if (vhosts != null) {
+				vhostNames.addAll(vhosts.keySet());
+			}
+		}
+
+		Map<String, VHostPool> oldPools = pools;
+		Map<String, VHostPool> newPools = new HashMap<String, VHostPool>();
+		Iterator<String> vhostIter = vhostNames.iterator();
+		while (vhostIter.hasNext()) {
+			String vhostName = vhostIter.next();
+			newPools.put(vhostName, new VHostPool(vhostName, getVHostServers(snapshot, vhostName), strategy, oldPools.get(vhostName)));
+		}
+
+		defaultPool = new VHostPool(null, snapshot, strategy, defaultPool);
+		pools = newPools;
+	}
+
+	/**
+	 * Use the per-vhost holders for a pool if every server reports per-vhost load.
+	 * 
+	 * Mixing per-vhost and server-wide figures in the same pool would compare a single vhost's traffic on one server
+	 * to the total traffic on another, so older senders make the whole pool fall back to the server-wide figures.
+	 * @param servers
+	 * @param vhostName
+	 * @return
+	 */
+	private static ServerHolder[] getVHostServers(ServerHolder[] servers, String vhostName) {
+		ServerHolder[] vhostServers = new ServerHolder[servers.length];
+		for (int i = 0; i < servers.length; i++) {
+			vhostServers[i] = servers[i].getVHostHolder(vhostName);
+			if (vhostServers[i] == null) {
+				return servers;
 			}
 		}
+		return vhostServers;
 	}
 
 	public void onIdle(LoadBalancerListener listener) {
@@ -404,9 +2458,13 @@ public class LoadBalancerRedirectorBandwidth implements ILoadBalancerRedirector
 						serverMap.put(serverId, serverHolder);
 					}
 
-					servers.remove(serverHolder);
-
+					boolean wasRunning = serverHolder.status == LoadBalancerServer.STATUS_RUNNING;
 					serverHolder.status = status;
+
+					if (wasRunning) {
+						publishPools();
+						updateQuotaState();
+					}
 				}
 			}
 		}
@@ -0,0 +1,98 @@
+/**
+ * LoadBalancerRejectedException.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+/**
+ * Thrown by LoadBalancerRedirectorBandwidth.requestRedirect() when no redirect can be handed out.
+ * 
+ * The reason tells the caller whether there simply are no servers, or whether the servers are there,
+ * but shouldn't receive any more clients right now.
+ */
+public class LoadBalancerRejectedException extends Exception {
+	// We'll probably never serialize this. Add a default serial version uid 
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * No running servers are available for the requested vhost
+	 */
+	public static final int REASON_NOSERVERS = 1;
+	
+	/**
+	 * Every available server is above its utilization threshold
+	 */
+	public static final int REASON_CAPACITYEXHAUSTED = 2;
+
+	/**
+	 * The vhost is using its maximum share of the cluster, or the rest is guaranteed to other vhosts
+	 */
+	public static final int REASON_OVERQUOTA = 3;
+
+	/**
+	 * Redirects are handed out faster than the vhost or the servers allow. The client should try again after getRetryAfter().
+	 */
+	public static final int REASON_RETRYLATER = 4;
+
+	private int reason;
+	private long retryAfter = 0;
+
+	public LoadBalancerRejectedException(int reason, String errorMessage) {
+		super(errorMessage);
+		this.reason = reason;
+	}
+
+	public LoadBalancerRejectedException(int reason, String errorMessage, long retryAfter) {
+		this(reason, errorMessage);
+		this.retryAfter = retryAfter;
+	}
+
+	public int getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return Milliseconds until a new request may succeed, or 0 if unknown
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return getRetryAfter() rounded up to whole seconds (at least 1), as used by the HTTP Retry-After header
+	 */
+	public long getRetryAfterSeconds() {
+		return Math.max((retryAfter + 999) / 1000, 1);
+	}
+
+	/**
+	 * Get a short, human readable name for a reason
+	 * @param reason
+	 * @return
+	 */
+	public static String reasonToString(int reason) {
+		switch (reason) {
+		case REASON_NOSERVERS:
+			return "no servers";
+		case REASON_CAPACITYEXHAUSTED:
+			return "capacity exhausted";
+		case REASON_OVERQUOTA:
+			return "over quota";
+		case REASON_RETRYLATER:
+			return "retry later";
+		}
+		return "unknown";
+	}
+}
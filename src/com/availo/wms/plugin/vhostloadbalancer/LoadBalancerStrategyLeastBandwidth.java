@@ -0,0 +1,44 @@
+/**
+ * LoadBalancerStrategyLeastBandwidth.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Redirects to the server with the least weighted bandwidth ("outRate"), with ties broken by serverId.
+ * 
+ * This is the original behaviour of LoadBalancerRedirectorBandwidth, and the default strategy.
+ * Strategy name: "leastBandwidth"
+ */
+public class LoadBalancerStrategyLeastBandwidth implements ILoadBalancerStrategy {
+
+	public Object createPoolState(VHostPool pool) {
+		return null;
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+		int first = candidates[0];
+		for (int i = 1; i < count; i++) {
+			if (servers[candidates[i]].compareTo(servers[first]) < 0) {
+				first = candidates[i];
+			}
+		}
+		return first;
+	}
+}
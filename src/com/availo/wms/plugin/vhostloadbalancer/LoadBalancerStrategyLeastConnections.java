@@ -0,0 +1,58 @@
+/**
+ * LoadBalancerStrategyLeastConnections.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Redirects to the server with the fewest weighted connections (connectCount + redirectCount), like the original LoadBalancer 2.0.
+ * 
+ * Strategy name: "leastConnections"
+ */
+public class LoadBalancerStrategyLeastConnections implements ILoadBalancerStrategy {
+
+	public Object createPoolState(VHostPool pool) {
+		return null;
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+		int first = candidates[0];
+		for (int i = 1; i < count; i++) {
+			if (compareConnections(servers[candidates[i]], servers[first]) < 0) {
+				first = candidates[i];
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Compare connections per weight without integer division, by cross-multiplying with the other server's weight
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private int compareConnections(ServerHolder a, ServerHolder b) {
+		long aLoad = ((long)a.connectCount + a.redirectCount.get()) * b.getScaledWeight();
+		long bLoad = ((long)b.connectCount + b.redirectCount.get()) * a.getScaledWeight();
+		if (aLoad == bLoad) {
+			return a.serverId.compareTo(b.serverId);
+		}
+		return aLoad > bLoad ? 1 : -1;
+	}
+}
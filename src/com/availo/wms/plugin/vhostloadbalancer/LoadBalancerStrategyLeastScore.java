@@ -0,0 +1,73 @@
+/**
+ * LoadBalancerStrategyLeastScore.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Redirects to the server with the lowest combined score of bandwidth and connections.
+ * 
+ * Each server's weighted bandwidth and weighted connections (including pending redirects) are divided by the
+ * totals for all candidates, and the two shares are added together. This avoids overloading a server with many
+ * low-bandwidth clients, which "leastBandwidth" alone can't see, and vice versa.
+ * Strategy name: "leastScore"
+ */
+public class LoadBalancerStrategyLeastScore implements ILoadBalancerStrategy {
+
+	public Object createPoolState(VHostPool pool) {
+		return null;
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+
+		// First find the totals, so the two measurements can be compared on the same scale
+		double totalBandwidth = 0;
+		double totalConnections = 0;
+		for (int i = 0; i < count; i++) {
+			totalBandwidth += bandwidth(servers[candidates[i]]);
+			totalConnections += connections(servers[candidates[i]]);
+		}
+
+		int first = -1;
+		double firstScore = 0;
+		for (int i = 0; i < count; i++) {
+			ServerHolder serverHolder = servers[candidates[i]];
+			double score = 0;
+			if (totalBandwidth > 0) {
+				score += bandwidth(serverHolder) / totalBandwidth;
+			}
+			if (totalConnections > 0) {
+				score += connections(serverHolder) / totalConnections;
+			}
+			if (first < 0 || score < firstScore) {
+				first = candidates[i];
+				firstScore = score;
+			}
+		}
+		return first;
+	}
+
+	private double bandwidth(ServerHolder serverHolder) {
+		return serverHolder.getEstimatedOutRate() / (double)serverHolder.getScaledWeight();
+	}
+
+	private double connections(ServerHolder serverHolder) {
+		return (Math.max(serverHolder.connectCount, 0) + serverHolder.redirectCount.get()) / (double)serverHolder.getScaledWeight();
+	}
+}
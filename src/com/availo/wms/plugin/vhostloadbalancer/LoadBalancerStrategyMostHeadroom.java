@@ -0,0 +1,54 @@
+/**
+ * LoadBalancerStrategyMostHeadroom.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Redirects to the server with the most remaining headroom (capacity minus estimated outRate), in bits per second.
+ * 
+ * Requires the senders to report their capacity ("loadBalancerSenderServerCapacity"). Servers without a known
+ * capacity have no measurable headroom, so if any candidate lacks it, this falls back to "leastBandwidth".
+ * Strategy name: "mostHeadroom"
+ */
+public class LoadBalancerStrategyMostHeadroom implements ILoadBalancerStrategy {
+
+	private LoadBalancerStrategyLeastBandwidth fallback = new LoadBalancerStrategyLeastBandwidth();
+
+	public Object createPoolState(VHostPool pool) {
+		return null;
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+		int first = -1;
+		long firstHeadroom = 0;
+		for (int i = 0; i < count; i++) {
+			ServerHolder serverHolder = servers[candidates[i]];
+			if (serverHolder.getServer().capacity <= 0) {
+				return fallback.select(pool, candidates, count);
+			}
+			long headroom = serverHolder.getHeadroom();
+			if (first < 0 || headroom > firstHeadroom || (headroom == firstHeadroom && serverHolder.serverId.compareTo(servers[first].serverId) < 0)) {
+				first = candidates[i];
+				firstHeadroom = headroom;
+			}
+		}
+		return first;
+	}
+}
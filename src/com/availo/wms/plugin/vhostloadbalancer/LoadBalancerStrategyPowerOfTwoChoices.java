@@ -0,0 +1,180 @@
+/**
+ * LoadBalancerStrategyPowerOfTwoChoices.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import java.util.Random;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+import com.wowza.wms.server.Server;
+
+/**
+ * Samples a few distinct random servers from the pool, weighted by server weight, and redirects to the one with the least weighted bandwidth.
+ * 
+ * Needs no global ordering, and spreads bursts of concurrent redirects across several servers instead of
+ * sending all of them to the same "best" server until the next status message arrives.
+ * 
+ * The number of samples defaults to two, and can be changed with the "loadBalancerListenerRedirectorChoices"
+ * property in Server.xml. More samples will give a result closer to "leastBandwidth", with less spreading.
+ * Strategy name: "powerOfTwoChoices"
+ */
+public class LoadBalancerStrategyPowerOfTwoChoices implements ILoadBalancerStrategy {
+
+	/**
+	 * One Random per thread, since a shared Random would make every redirect contend on the same seed
+	 */
+	private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	/**
+	 * How many servers to sample for each redirect
+	 */
+	private int choices = 2;
+
+	public LoadBalancerStrategyPowerOfTwoChoices() {
+		Server server = Server.getInstance();
+		if (server != null && server.getProperties() != null) {
+			setChoices(server.getProperties().getPropertyInt("loadBalancerListenerRedirectorChoices", choices));
+		}
+	}
+
+	public void setChoices(int choices) {
+		this.choices = choices < 2 ? 2 : choices;
+	}
+
+	public int getChoices() {
+		return choices;
+	}
+
+	/**
+	 * The state is the running total of all server weights, used for weighted sampling with a binary search.
+	 * Pools are rebuilt whenever a server's weight changes, so this is always up to date, except for servers in slow start or drain.
+	 */
+	public Object createPoolState(VHostPool pool) {
+		ServerHolder[] servers = pool.servers;
+		long[] cumulativeWeights = new long[servers.length];
+		long totalWeight = 0;
+		for (int i = 0; i < servers.length; i++) {
+			totalWeight += servers[i].getScaledWeight();
+			cumulativeWeights[i] = totalWeight;
+		}
+		return cumulativeWeights;
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+		if (count <= choices) {
+			// Every server would be sampled anyway
+			int first = candidates[0];
+			for (int i = 1; i < count; i++) {
+				if (servers[candidates[i]].compareTo(servers[first]) < 0) {
+					first = candidates[i];
+				}
+			}
+			return first;
+		}
+
+		long[] cumulativeWeights = (long[])pool.strategyState;
+		// If some servers are filtered out, or are ramping their weight up or down, the precomputed weights can't be used
+		boolean precomputed = count == servers.length;
+		for (int i = 0; precomputed && i < count; i++) {
+			precomputed = !servers[candidates[i]].hasReducedWeight();
+		}
+		if (!precomputed) {
+			cumulativeWeights = new long[count];
+			long totalWeight = 0;
+			for (int i = 0; i < count; i++) {
+				totalWeight += servers[candidates[i]].getScaledWeight();
+				cumulativeWeights[i] = totalWeight;
+			}
+		}
+		Random rnd = random.get();
+
+		// Positions in candidates that are already sampled, in ascending order. When nothing is filtered out, a
+		// position in candidates is the same as the index in pool.servers.
+		int[] sampled = new int[choices];
+		sampled[0] = sample(cumulativeWeights, rnd, sampled, 0);
+		int first = candidates[sampled[0]];
+		for (int i = 1; i < choices; i++) {
+			int position = sample(cumulativeWeights, rnd, sampled, i);
+			if (position < 0) {
+				// Only servers without any weight left
+				break;
+			}
+			int next = candidates[position];
+			if (servers[next].compareTo(servers[first]) < 0) {
+				first = next;
+			}
+			int j = i;
+			while (j > 0 && sampled[j - 1] > position) {
+				sampled[j] = sampled[j - 1];
+				j--;
+			}
+			sampled[j] = position;
+		}
+		return first;
+	}
+
+	/**
+	 * Pick a random server that isn't sampled yet, with a probability proportional to its weight
+	 * @param cumulativeWeights
+	 * @param rnd
+	 * @param sampled Positions already sampled, in ascending order
+	 * @param sampledCount
+	 * @return Position in cumulativeWeights, or -1 if the servers left have no weight
+	 */
+	private int sample(long[] cumulativeWeights, Random rnd, int[] sampled, int sampledCount) {
+		long totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+		for (int i = 0; i < sampledCount; i++) {
+			totalWeight -= getWeight(cumulativeWeights, sampled[i]);
+		}
+		if (sampledCount > 0 && totalWeight <= 0) {
+			return -1;
+		}
+		long target = (long)(rnd.nextDouble() * totalWeight);
+
+		// The target is a position in the weight of the servers left. Step over the weight of the sampled servers,
+		// from the lowest position up, to get the position in the running total.
+		for (int i = 0; i < sampledCount; i++) {
+			long weight = getWeight(cumulativeWeights, sampled[i]);
+			if (target >= cumulativeWeights[sampled[i]] - weight) {
+				target += weight;
+			}
+		}
+
+		// Find the first server where the running total is larger than the target
+		int low = 0;
+		int high = cumulativeWeights.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulativeWeights[middle] > target) {
+				high = middle;
+			}
+			else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	private static long getWeight(long[] cumulativeWeights, int position) {
+		return position > 0 ? cumulativeWeights[position] - cumulativeWeights[position - 1] : cumulativeWeights[0];
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * LoadBalancerStrategyWeightedRoundRobin.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.ServerHolder;
+import com.availo.wms.plugin.vhostloadbalancer.LoadBalancerRedirectorBandwidth.VHostPool;
+
+/**
+ * Smooth weighted round robin (as used by nginx), which ignores the reported load completely.
+ * 
+ * Every pick adds each server's weight to its current value, selects the server with the highest value,
+ * and subtracts the total weight from the selected server. A server with weight 5 will get 5 out of every
+ * 6 redirects when paired with a server of weight 1, but never 5 in a row.
+ * 
+ * The state is kept per vhost pool, and is only locked per pool, so vhosts don't wait on each other.
+ * Servers that are filtered out by the redirector are skipped, and don't build up credit while they are.
+ * Strategy name: "weightedRoundRobin"
+ */
+public class LoadBalancerStrategyWeightedRoundRobin implements ILoadBalancerStrategy {
+
+	public Object createPoolState(VHostPool pool) {
+		return new long[pool.servers.length];
+	}
+
+	public int select(VHostPool pool, int[] candidates, int count) {
+		ServerHolder[] servers = pool.servers;
+		long[] currentWeights = (long[])pool.strategyState;
+		int selected = -1;
+
+		synchronized (currentWeights) {
+			long totalWeight = 0;
+			for (int i = 0; i < count; i++) {
+				int index = candidates[i];
+				long weight = servers[index].getScaledWeight();
+				currentWeights[index] += weight;
+				totalWeight += weight;
+				if (selected < 0 || currentWeights[index] > currentWeights[selected]) {
+					selected = index;
+				}
+			}
+			if (selected >= 0) {
+				currentWeights[selected] -= totalWeight;
+			}
+		}
+		return selected;
+	}
+}
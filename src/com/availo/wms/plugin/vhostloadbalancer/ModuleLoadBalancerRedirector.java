@@ -171,10 +171,16 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 		String ret = "unknown";
 		String vhostName = appInstance.getVHost().getName();
 
-		LoadBalancerRedirect redirect = redirector.getRedirect(vhostName);
-		if (redirect == null) {
-			client.rejectConnection(logPrefix("getLoadBalancerRedirect", appInstance) + ": Redirect failed.");
-			getLogger().warn(logPrefix("getLoadBalancerRedirec", appInstance) + ": Redirect failed.");
+		LoadBalancerRedirect redirect = null;
+		try {
+			LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(vhostName);
+			request.setClient(client.getIp(), getClientId(client.getIp(), client.getQueryStr()));
+			request.setRequiredCapabilities(LoadBalancerCapabilities.RTMP);
+			redirect = redirector.requestRedirect(request);
+		} catch (LoadBalancerRejectedException e) {
+			client.rejectConnection(logPrefix("getLoadBalancerRedirect", appInstance) + ": Redirect failed (" + LoadBalancerRejectedException.reasonToString(e.getReason()) + ").");
+			getLogger().warn(logPrefix("getLoadBalancerRedirect", appInstance) + ": Redirect failed. " + e.getMessage());
+			return;
 		}
 		ret = redirect.getHost();
 		sendResult(client, params, new AMFDataItem(ret));
@@ -226,11 +232,16 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 				getLogger().warn(logPrefix("onRTMPRequest", appInstance) + ": LoadBalancerRedirectorBandwidth not found.");
 			}
 
-			LoadBalancerRedirect redirect = redirector.getRedirect(vhostName);
-			if (redirect == null) {
-				client.rejectConnection(logPrefix("onRTMPRequest", appInstance) + ": Redirect failed.");
-				getLogger().warn(logPrefix("onRTMPRequest", appInstance) +
-						": LoadBalancerRedirect server not found - no active edge servers available for vhost '" + appInstance.getVHost().getName() + "'?");
+			LoadBalancerRedirectReservation redirect = null;
+			try {
+				LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(vhostName);
+				request.setClient(client.getIp(), getClientId(client.getIp(), client.getQueryStr()));
+				request.setRequiredCapabilities(LoadBalancerCapabilities.RTMP);
+				redirect = redirector.reserveRedirect(request);
+			} catch (LoadBalancerRejectedException e) {
+				client.rejectConnection(logPrefix("onRTMPRequest", appInstance) + ": Redirect failed (" + LoadBalancerRejectedException.reasonToString(e.getReason()) + ").");
+				getLogger().warn(logPrefix("onRTMPRequest", appInstance) + ": LoadBalancerRedirect server not found - " + e.getMessage());
+				return;
 			}
 
 			String uriStr = client.getUri();
@@ -261,9 +272,12 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 				// Execute the redirect
 				client.redirectConnection(newUri.toString() + queryString);
 				client.rejectConnection(logPrefix("onRTMPRequest", appInstance) + ": Redirected to '" + newUri.toString() + queryString + "'");
+				redirect.confirm();
 				return;
 
 			} catch (Exception e) {
+				// The client was never sent to the edge, so don't count it there
+				redirect.release();
 				client.rejectConnection(logPrefix("onRTMPRequest", appInstance) + ": Exception: " + e.toString());
 				getLogger().debug(logPrefix("onRTMPRequest", appInstance) + ": Exception: " + e.toString());
 			}
@@ -313,13 +327,23 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 		if (initialized || init()) {
 			if (redirectOnConnect || redirectRequest) {
 				IApplicationInstance appInstance = httpSession.getAppInstance();
-				LoadBalancerRedirect redirect = null;
-				if (redirector.getRedirect(appInstance.getVHost().getName()) == null) {
-					getLogger().warn(logPrefix("onHTTPSessionCreate", appInstance) +
-							": LoadBalancerRedirect server not found - no active edge servers available for vhost '" + appInstance.getVHost().getName() + "'?");
+				LoadBalancerRedirectReservation redirect = null;
+				try {
+					String appName = appInstance.getApplication().getName();
+					LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(appInstance.getVHost().getName(), getTargetAppName(appName), httpSession.getStreamName());
+					request.setClient(httpSession.getIpAddress(), getClientId(httpSession.getIpAddress(), httpSession.getQueryStr()));
+					request.setRequiredCapabilities(getHTTPCapabilities(httpSession));
+					redirect = redirector.reserveRedirect(request);
+				} catch (LoadBalancerRejectedException e) {
+					getLogger().warn(logPrefix("onHTTPSessionCreate", appInstance) + ": LoadBalancerRedirect server not found - " + e.getMessage());
+					if (e.getReason() == LoadBalancerRejectedException.REASON_RETRYLATER) {
+						// The HTTPStreamers will answer with "503 Service Unavailable" and this Retry-After. The session must not be
+						// rejected here, since the HTTPStreamers' serviceMsg() would then never see it.
+						httpSession.setUserHTTPHeader("X-LoadBalancer-RetryAfter", Long.toString(e.getRetryAfterSeconds()));
+						return;
+					}
 				}
-				else {
-					redirect = redirector.getRedirect(appInstance.getVHost().getName());
+				if (redirect != null) {
 			        try {
 			    		String loadbalancerTargetProtocol = "http://";
 			    		String loadbalancerTarget = redirect.getHost();
@@ -370,11 +394,14 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 						
 						//URI newUri = new URI(uri.toString());
 						//httpSession.redirectSession(baseUrl + queryString);
+						redirect.confirm();
 						return;
 			
 					} catch (Exception e) {
 						getLogger().error(logPrefix("onHTTPSessionCreate", appInstance) + ": Exception: " + e.toString());
 					}
+					// The session is rejected below, so the client will never show up on the edge
+					redirect.release();
 					getLogger().warn(logPrefix("onHTTPSessionCreate", appInstance) + ": Redirect failed - could not add 'X-LoadBalancer-Target' HTTP header.");
 				}
 				getLogger().debug(logPrefix("onHTTPSessionCreate", httpSession.getAppInstance()) + ": Tried to redirect, but failed. Rejecting session.");
@@ -405,13 +432,17 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 		if (initialized || init()) {
 			if (redirectOnConnect || redirectRequest) {
 				IApplicationInstance appInstance = rtpSession.getAppInstance();
-				LoadBalancerRedirect redirect = null;
-				if (redirector.getRedirect(appInstance.getVHost().getName()) == null) {
-					getLogger().warn(logPrefix("onRTPSessionCreate", appInstance) +
-							": LoadBalancerRedirect server not found - no active edge servers available for vhost '" + appInstance.getVHost().getName() + "'?");
+				LoadBalancerRedirectReservation redirect = null;
+				try {
+					String appName = appInstance.getApplication().getName();
+					LoadBalancerRedirectRequest request = new LoadBalancerRedirectRequest(appInstance.getVHost().getName(), getTargetAppName(appName), getRTSPStreamName(rtpSession.getUri(), appName));
+					request.setClient(rtpSession.getIp(), getClientId(rtpSession.getIp(), rtpSession.getQueryStr()));
+					request.setRequiredCapabilities(LoadBalancerCapabilities.RTSP | getStreamCapabilities(request.getStreamName(), rtpSession.getQueryStr()));
+					redirect = redirector.reserveRedirect(request);
+				} catch (LoadBalancerRejectedException e) {
+					getLogger().warn(logPrefix("onRTPSessionCreate", appInstance) + ": LoadBalancerRedirect server not found - " + e.getMessage());
 				}
-				else {
-					redirect = redirector.getRedirect(appInstance.getVHost().getName());
+				if (redirect != null) {
 			        try {
 						// RTPSession includes protocol, hostname and port in getUri().
 						String uriStr = rtpSession.getUri();
@@ -441,9 +472,11 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 						// Only add the "?stuff" parameters if the querystring has actual data
 						String queryString = (rtpSession.getQueryStr() != null && rtpSession.getQueryStr() != "") ? "?" + rtpSession.getQueryStr() : "";
 						rtpSession.redirectSession(newUri.toString() + queryString);
+						redirect.confirm();
 						return;
 			
 					} catch (Exception e) {
+						redirect.release();
 						rtpSession.rejectSession(); // TODO figure out a way to add an error message to the client, like rejectConnection(String errorStr) offers
 						getLogger().error(logPrefix("onRTPSessionCreate", appInstance) + ": Exception: " + e.toString());
 					}
@@ -456,6 +489,119 @@ public class ModuleLoadBalancerRedirector extends ModuleBase {
 		getLogger().warn(logPrefix("onRTPSessionCreate", rtpSession.getAppInstance()) + ": Could not initialize the LoadBalancer module.");
 	}
 	
+	/**
+	 * Identify a client for client affinity
+	 * 
+	 * The player token from the query string is preferred if "loadBalancerListenerClientAffinityToken" is set,
+	 * since it stays the same when a mobile player changes IP address.
+	 * @param ip
+	 * @param queryStr
+	 * @return The player token, or the IP address if there is no token
+	 */
+	private String getClientId(String ip, String queryStr) {
+		String token = redirector.getClientAffinityToken();
+		if (token != null && queryStr != null) {
+			String prefix = token + "=";
+			for (String param : queryStr.split("&")) {
+				if (param.startsWith(prefix) && param.length() > prefix.length()) {
+					return token + ":" + param.substring(prefix.length());
+				}
+			}
+		}
+		return ip;
+	}
+
+	/**
+	 * The application the client is sent to on the edge server, which is what the edge knows its streams by
+	 * @param appName The application on this server
+	 * @return redirectAppName without any application instance, or appName if the client keeps the application
+	 */
+	private String getTargetAppName(String appName) {
+		if (redirectAppName == null || redirectAppName.length() == 0) {
+			return appName;
+		}
+		String ret = redirectAppName.startsWith("/") ? redirectAppName.substring(1) : redirectAppName;
+		int slash = ret.indexOf('/');
+		return slash > 0 ? ret.substring(0, slash) : ret;
+	}
+
+	/**
+	 * The capabilities an edge needs to serve an HLS (Cupertino) or HDS (San Jose) session
+	 * @param httpSession
+	 * @return A LoadBalancerCapabilities bitmask
+	 */
+	private int getHTTPCapabilities(IHTTPStreamerSession httpSession) {
+		int capabilities = getStreamCapabilities(httpSession.getStreamName(), httpSession.getQueryStr());
+		switch (httpSession.getSessionProtocol()) {
+			case IHTTPStreamerSession.SESSIONPROTOCOL_CUPERTINOSTREAMING:
+				capabilities |= LoadBalancerCapabilities.HLS;
+				break;
+			case IHTTPStreamerSession.SESSIONPROTOCOL_SANJOSESTREAMING:
+				capabilities |= LoadBalancerCapabilities.HDS;
+				break;
+		}
+		// Same rule as for the redirect URL in onHTTPSessionCreate
+		if (redirectPort == 443) {
+			capabilities |= LoadBalancerCapabilities.HTTPS;
+		}
+		return capabilities;
+	}
+
+	/**
+	 * The capabilities an edge needs for the stream itself: DVR if the client asks for "?DVR", and the transcoder
+	 * for adaptive bitrate groups ("ngrp:"), which only exist where the transcoder runs
+	 * @param streamName
+	 * @param queryStr
+	 * @return A LoadBalancerCapabilities bitmask
+	 */
+	private int getStreamCapabilities(String streamName, String queryStr) {
+		int capabilities = LoadBalancerCapabilities.NONE;
+		if (queryStr != null) {
+			for (String param : queryStr.split("&")) {
+				if (param.equalsIgnoreCase("DVR") || param.regionMatches(true, 0, "DVR=", 0, 4)) {
+					capabilities |= LoadBalancerCapabilities.DVR;
+					break;
+				}
+			}
+		}
+		if (streamName != null && streamName.startsWith("ngrp:")) {
+			capabilities |= LoadBalancerCapabilities.TRANSCODER;
+		}
+		return capabilities;
+	}
+
+	/**
+	 * Find the stream name in an RTSP URI ("rtsp://host:port/appName/[appInstance/]streamName")
+	 * 
+	 * RTPSession does not know the stream name until the DESCRIBE has been handled,
+	 * so it has to be parsed from the URI instead.
+	 * @param uriStr
+	 * @param appName
+	 * @return The stream name, or null if the URI does not contain one
+	 */
+	private String getRTSPStreamName(String uriStr, String appName) {
+		if (uriStr == null) {
+			return null;
+		}
+		try {
+			String path = new URI(uriStr).getPath();
+			if (path == null) {
+				return null;
+			}
+			String prefix = "/" + appName + "/";
+			if (!path.startsWith(prefix)) {
+				return null;
+			}
+			String streamName = path.substring(prefix.length());
+			if (streamName.startsWith("_definst_/")) {
+				streamName = streamName.substring("_definst_/".length());
+			}
+			return streamName.length() > 0 ? streamName : null;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Connect to the edge server, create a session there and grab the session Id
 	 * 
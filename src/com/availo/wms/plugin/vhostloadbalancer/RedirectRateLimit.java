@@ -0,0 +1,170 @@
+/**
+ * RedirectRateLimit.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wowza.wms.logging.WMSLoggerFactory;
+
+/**
+ * Token bucket for new redirects, with a sustained rate and a burst size.
+ * 
+ * The bucket is implemented as a virtual scheduling algorithm (GCRA): the only state is the time when the bucket will
+ * be full again, kept in a single AtomicLong that is updated with compare-and-set. One RedirectRateLimit holds the
+ * configuration, and can be shared by any number of buckets (one AtomicLong per vhost or per server).
+ */
+public class RedirectRateLimit {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final int rate;
+	private final int burst;
+
+	/**
+	 * Time each redirect "costs", in nanoseconds
+	 */
+	private final long interval;
+
+	/**
+	 * How far ahead of the current time the bucket may be scheduled before it is empty, in nanoseconds
+	 */
+	private final long tolerance;
+
+	/**
+	 * @param rate Sustained redirects per second
+	 * @param burst Redirects that may be handed out at once, when the bucket is full
+	 */
+	public RedirectRateLimit(int rate, int burst) {
+		this.rate = Math.max(rate, 1);
+		this.burst = Math.max(burst, 1);
+		this.interval = NANOS_PER_SECOND / this.rate;
+		this.tolerance = interval * this.burst;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Take a token from a bucket, if there is one
+	 * @param bucket
+	 * @param now System.nanoTime()
+	 * @return 0 if a token was taken, or the number of nanoseconds until the next token is available
+	 */
+	public long tryAcquire(AtomicLong bucket, long now) {
+		while (true) {
+			long full = bucket.get();
+			long next = Math.max(full, now) + interval;
+			if (next - now > tolerance) {
+				return next - now - tolerance;
+			}
+			if (bucket.compareAndSet(full, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Check a bucket without taking a token
+	 * @param bucket
+	 * @param now System.nanoTime()
+	 * @return 0 if there is a token, or the number of nanoseconds until the next token is available
+	 */
+	public long peek(AtomicLong bucket, long now) {
+		long next = Math.max(bucket.get(), now) + interval;
+		return next - now > tolerance ? next - now - tolerance : 0;
+	}
+
+	/**
+	 * Give a token back to a bucket, for a redirect that took a token with tryAcquire() but was never handed out
+	 * @param bucket
+	 */
+	public void release(AtomicLong bucket) {
+		while (true) {
+			long full = bucket.get();
+			if (bucket.compareAndSet(full, full - interval)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return A new, full bucket
+	 */
+	public static AtomicLong newBucket() {
+		return new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Parse "rate:burst" or "rate" (with a burst of one second's worth of redirects)
+	 * @param limit
+	 * @return The limit, or null if it is empty or invalid
+	 */
+	public static RedirectRateLimit parse(String limit) {
+		if (limit == null || limit.trim().length() == 0) {
+			return null;
+		}
+		try {
+			int colon = limit.indexOf(':');
+			int rate = Integer.parseInt((colon >= 0 ? limit.substring(0, colon) : limit).trim());
+			int burst = colon >= 0 ? Integer.parseInt(limit.substring(colon + 1).trim()) : rate;
+			if (rate <= 0 || burst <= 0) {
+				return null;
+			}
+			return new RedirectRateLimit(rate, burst);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse a comma separated list of "vhostName=rate:burst". Invalid entries are logged and skipped.
+	 * @param limits
+	 * @return The limit per vhost name
+	 */
+	public static Map<String, RedirectRateLimit> parseMap(String limits) {
+		Map<String, RedirectRateLimit> ret = new HashMap<String, RedirectRateLimit>();
+		if (limits == null) {
+			return ret;
+		}
+		String[] entries = limits.split(",");
+		for (int i = 0; i < entries.length; i++) {
+			String entry = entries[i].trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int equals = entry.indexOf('=');
+			RedirectRateLimit limit = equals > 0 ? parse(entry.substring(equals + 1)) : null;
+			if (limit == null) {
+				WMSLoggerFactory.getLogger(RedirectRateLimit.class).warn("RedirectRateLimit.parseMap: Ignoring invalid limit '" + entry + "'. Expected 'vhostName=rate:burst'.");
+				continue;
+			}
+			ret.put(entry.substring(0, equals).trim(), limit);
+		}
+		return ret;
+	}
+
+	public String toString() {
+		return rate + "/s (burst " + burst + ")";
+	}
+}
@@ -5,6 +5,8 @@
 
 package com.availo.wms.plugin.vhostloadbalancer;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import org.apache.commons.modeler.*;
@@ -54,12 +56,52 @@ public class ServerListenerLoadBalancerListener implements IServerNotify2 {
 		String ipAddress = null;
 		int port = 1934;
 		String redirectorClass = null;
+		String redirectorStrategy = null;
+		long redirectRate = LoadBalancerRedirectorBandwidth.DEFAULT_REDIRECTRATE;
+		int utilizationThreshold = LoadBalancerRedirectorBandwidth.DEFAULT_UTILIZATIONTHRESHOLD;
+		boolean streamAffinity = false;
+		int streamAffinityLoadFactor = LoadBalancerRedirectorBandwidth.DEFAULT_STREAMAFFINITYLOADFACTOR;
+		boolean streamPresence = false;
+		int streamPresenceLoadFactor = LoadBalancerRedirectorBandwidth.DEFAULT_STREAMPRESENCELOADFACTOR;
+		boolean clientAffinity = false;
+		int clientAffinitySize = LoadBalancerRedirectorBandwidth.DEFAULT_CLIENTAFFINITYSIZE;
+		int clientAffinityTTL = LoadBalancerRedirectorBandwidth.DEFAULT_CLIENTAFFINITYTTL;
+		String clientAffinityToken = null;
+		String subnetMapFile = null;
+		String vhostQuotas = null;
+		String serverRedirectLimit = null;
+		String vhostRedirectLimits = null;
+		int slowStartTime = 0;
+		int slowStartReports = 0;
+		int slowStartInitialWeight = LoadBalancerRedirectorBandwidth.DEFAULT_SLOWSTARTINITIALWEIGHT;
+		int tierThreshold = LoadBalancerRedirectorBandwidth.DEFAULT_TIERTHRESHOLD;
+		int tierHysteresis = LoadBalancerRedirectorBandwidth.DEFAULT_TIERHYSTERESIS;
 		int messageTimeout = 5000;
 
 		key = props.getPropertyStr("loadBalancerListenerKey", key);
 		ipAddress = props.getPropertyStr("loadBalancerListenerIpAddress", ipAddress);
 		port = props.getPropertyInt("loadBalancerListenerPort", port);
 		redirectorClass = props.getPropertyStr("loadBalancerListenerRedirectorClass", redirectorClass);
+		redirectorStrategy = props.getPropertyStr("loadBalancerListenerRedirectorStrategy", redirectorStrategy);
+		redirectRate = props.getPropertyLong("loadBalancerListenerRedirectRate", redirectRate);
+		utilizationThreshold = props.getPropertyInt("loadBalancerListenerUtilizationThreshold", utilizationThreshold);
+		streamAffinity = props.getPropertyBoolean("loadBalancerListenerStreamAffinity", streamAffinity);
+		streamAffinityLoadFactor = props.getPropertyInt("loadBalancerListenerStreamAffinityLoadFactor", streamAffinityLoadFactor);
+		streamPresence = props.getPropertyBoolean("loadBalancerListenerStreamPresence", streamPresence);
+		streamPresenceLoadFactor = props.getPropertyInt("loadBalancerListenerStreamPresenceLoadFactor", streamPresenceLoadFactor);
+		clientAffinity = props.getPropertyBoolean("loadBalancerListenerClientAffinity", clientAffinity);
+		clientAffinitySize = props.getPropertyInt("loadBalancerListenerClientAffinitySize", clientAffinitySize);
+		clientAffinityTTL = props.getPropertyInt("loadBalancerListenerClientAffinityTTL", clientAffinityTTL);
+		clientAffinityToken = props.getPropertyStr("loadBalancerListenerClientAffinityToken", clientAffinityToken);
+		subnetMapFile = props.getPropertyStr("loadBalancerListenerSubnetMapFile", subnetMapFile);
+		vhostQuotas = props.getPropertyStr("loadBalancerListenerVHostQuotas", vhostQuotas);
+		serverRedirectLimit = props.getPropertyStr("loadBalancerListenerServerRedirectLimit", serverRedirectLimit);
+		vhostRedirectLimits = props.getPropertyStr("loadBalancerListenerVHostRedirectLimits", vhostRedirectLimits);
+		slowStartTime = props.getPropertyInt("loadBalancerListenerSlowStartTime", slowStartTime);
+		slowStartReports = props.getPropertyInt("loadBalancerListenerSlowStartReports", slowStartReports);
+		slowStartInitialWeight = props.getPropertyInt("loadBalancerListenerSlowStartInitialWeight", slowStartInitialWeight);
+		tierThreshold = props.getPropertyInt("loadBalancerListenerTierThreshold", tierThreshold);
+		tierHysteresis = props.getPropertyInt("loadBalancerListenerTierHysteresis", tierHysteresis);
 		messageTimeout = props.getPropertyInt("loadBalancerListenerMessageTimeout", messageTimeout);
 
 		ILoadBalancerRedirector loadBalancerRedirector = null;
@@ -77,6 +119,33 @@ public class ServerListenerLoadBalancerListener implements IServerNotify2 {
 			loadBalancerRedirector = new LoadBalancerRedirectorBandwidth();
 		}
 
+		if (loadBalancerRedirector instanceof LoadBalancerRedirectorBandwidth) {
+			LoadBalancerRedirectorBandwidth bandwidthRedirector = (LoadBalancerRedirectorBandwidth) loadBalancerRedirector;
+			bandwidthRedirector.setDefaultRedirectRate(redirectRate);
+			bandwidthRedirector.setUtilizationThreshold(utilizationThreshold);
+			bandwidthRedirector.setStreamAffinity(streamAffinity);
+			bandwidthRedirector.setStreamAffinityLoadFactor(streamAffinityLoadFactor);
+			bandwidthRedirector.setStreamPresence(streamPresence);
+			bandwidthRedirector.setStreamPresenceLoadFactor(streamPresenceLoadFactor);
+			if (subnetMapFile != null && subnetMapFile.length() > 0) {
+				bandwidthRedirector.setSubnetMap(loadSubnetMap(subnetMapFile));
+			}
+			if (vhostQuotas != null) {
+				bandwidthRedirector.setVHostQuotas(vhostQuotas);
+			}
+			bandwidthRedirector.setSlowStart(slowStartTime, slowStartReports, slowStartInitialWeight);
+			bandwidthRedirector.setTierThresholds(tierThreshold, tierHysteresis);
+			bandwidthRedirector.setServerRedirectLimit(serverRedirectLimit);
+			bandwidthRedirector.setVHostRedirectLimits(vhostRedirectLimits);
+			if (clientAffinity) {
+				bandwidthRedirector.setClientAffinity(clientAffinitySize, clientAffinityTTL);
+				bandwidthRedirector.setClientAffinityToken(clientAffinityToken);
+			}
+			if (redirectorStrategy != null) {
+				bandwidthRedirector.setStrategy(redirectorStrategy);
+			}
+		}
+
 		while (true) {
 			if (ipAddress == null)
 				break;
@@ -134,4 +203,24 @@ public class ServerListenerLoadBalancerListener implements IServerNotify2 {
 	public void onServerShutdownComplete(IServer server) {
 	}
 
+	/**
+	 * Load the subnet map used for subnet-aware routing
+	 * @param fileName May contain ${com.wowza.wms.ConfigHome}
+	 * @return The map, or null if the file could not be read
+	 */
+	private SubnetTrie loadSubnetMap(String fileName) {
+		String configHome = System.getProperty("com.wowza.wms.ConfigHome");
+		if (configHome != null) {
+			fileName = fileName.replace("${com.wowza.wms.ConfigHome}", configHome);
+		}
+		try {
+			SubnetTrie subnetMap = SubnetTrie.load(new File(fileName));
+			WMSLoggerFactory.getLogger(ServerListenerLoadBalancerListener.class).info("ServerListenerLoadBalancerListener.loadSubnetMap: Loaded " + subnetMap.getGroupNames().length + " edge groups from '" + fileName + "'.");
+			return subnetMap;
+		} catch (IOException e) {
+			WMSLoggerFactory.getLogger(ServerListenerLoadBalancerListener.class).error("ServerListenerLoadBalancerListener.loadSubnetMap: Could not read '" + fileName + "': " + e.toString());
+		}
+		return null;
+	}
+
 }
@@ -22,6 +22,7 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 
 	private LoadBalancerSender loadBalancerSender = null;
 	private LoadBalancerWorker loadBalancerWorker = null;
+	private LoadBalancerAdaptiveWorker loadBalancerAdaptiveWorker = null;
 
 	public void onServerConfigLoaded(IServer server) {
 	}
@@ -36,6 +37,11 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 		String redirectAddress = "localhost";
 		String monitorClass = null;
 		int messageInterval = 2500;
+		boolean adaptive = false;
+		int checkInterval = 250;
+		int minInterval = 500;
+		int keepaliveInterval = 2000;
+		int changeThreshold = 10;
 		
 		WMSProperties props = server.getProperties();
 
@@ -43,6 +49,11 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 		redirectAddress = props.getPropertyStr("loadBalancerSenderRedirectAddress", redirectAddress);
 		monitorClass = props.getPropertyStr("loadBalancerSenderMonitorClass", monitorClass);
 		messageInterval = props.getPropertyInt("loadBalancerSenderMessageInterval", messageInterval);
+		adaptive = props.getPropertyBoolean("loadBalancerSenderAdaptive", adaptive);
+		checkInterval = props.getPropertyInt("loadBalancerSenderCheckInterval", checkInterval);
+		minInterval = props.getPropertyInt("loadBalancerSenderMinInterval", minInterval);
+		keepaliveInterval = props.getPropertyInt("loadBalancerSenderKeepaliveInterval", keepaliveInterval);
+		changeThreshold = props.getPropertyInt("loadBalancerSenderChangeThreshold", changeThreshold);
 
 		if (redirectAddress != null) {
 			redirectAddress = SystemUtils.expandEnvironmentVariables(redirectAddress);
@@ -67,7 +78,6 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 			loadBalancerMonitor = new LoadBalancerMonitorDefault();
 
 		loadBalancerSender = new LoadBalancerSender();
-		loadBalancerWorker = new LoadBalancerWorker(loadBalancerSender);
 
 		server.getProperties().put(PROP_LOADBALANCERSENDER, loadBalancerSender);
 		
@@ -80,10 +90,24 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 		loadBalancerSender.setStatus(LoadBalancerServer.STATUS_RUNNING);
 		loadBalancerSender.run();
 
-		loadBalancerWorker.setWorkInterval(messageInterval);
-		loadBalancerWorker.setDaemon(true);
-		loadBalancerWorker.setName("LoadBalancerSender");
-		loadBalancerWorker.start();
+		if (adaptive) {
+			// Send as soon as the load changes, and only keepalives when it doesn't
+			loadBalancerAdaptiveWorker = new LoadBalancerAdaptiveWorker(loadBalancerSender);
+			loadBalancerAdaptiveWorker.setCheckInterval(checkInterval);
+			loadBalancerAdaptiveWorker.setMinInterval(minInterval);
+			loadBalancerAdaptiveWorker.setKeepaliveInterval(keepaliveInterval);
+			loadBalancerAdaptiveWorker.setChangeThreshold(changeThreshold);
+			loadBalancerAdaptiveWorker.setDaemon(true);
+			loadBalancerAdaptiveWorker.setName("LoadBalancerSender");
+			loadBalancerAdaptiveWorker.start();
+		}
+		else {
+			loadBalancerWorker = new LoadBalancerWorker(loadBalancerSender);
+			loadBalancerWorker.setWorkInterval(messageInterval);
+			loadBalancerWorker.setDaemon(true);
+			loadBalancerWorker.setName("LoadBalancerSender");
+			loadBalancerWorker.start();
+		}
 
 		try {
 			Registry.getRegistry(null, null).registerComponent(loadBalancerSender, AdminAgent.AGENT_DOMAINNAME + ":loadBalancer=LoadBalancer," + "name=LoadBalancerSender", loadBalancerSender.getClass().getName());
@@ -99,6 +123,10 @@ public class ServerListenerLoadBalancerSender implements IServerNotify2 {
 			loadBalancerWorker.quit();
 		}
 		loadBalancerWorker = null;
+		if (loadBalancerAdaptiveWorker != null) {
+			loadBalancerAdaptiveWorker.quit();
+		}
+		loadBalancerAdaptiveWorker = null;
 
 		loadBalancerSender.setStatus(LoadBalancerServer.STATUS_STOPPED);
 		loadBalancerSender.run();
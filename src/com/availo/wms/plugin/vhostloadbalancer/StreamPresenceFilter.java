@@ -0,0 +1,153 @@
+/**
+ * StreamPresenceFilter.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+/**
+ * Bloom filter of the streams an edge server is currently serving, small enough to be sent with every status message.
+ * 
+ * The filter never misses a stream that was added, but may claim to have a stream it doesn't (about 1-2% of the
+ * time with the default size). That is good enough to prefer edges that already pull a stream from the origin.
+ * 
+ * Streams are identified by "appName/streamName", hashed with the same 64-bit hash as the consistent hash ring, and
+ * the filter is sent as base64, so the sender and the listener must run the same version of this class.
+ */
+public class StreamPresenceFilter {
+	/**
+	 * Number of bits set per stream
+	 */
+	public static final int HASHES = 3;
+
+	/**
+	 * Bits per expected stream. 10 bits with 3 hashes gives about 1.7% false positives.
+	 */
+	public static final int BITS_PER_STREAM = 10;
+
+	public static final int MIN_BITS = 64;
+	public static final int MAX_BITS = 1 << 20;
+
+	private final long[] bits;
+
+	/**
+	 * Number of bits - 1. The number of bits is always a power of two.
+	 */
+	private final int mask;
+
+	/**
+	 * @param expectedStreams Number of streams the filter is sized for
+	 */
+	public StreamPresenceFilter(int expectedStreams) {
+		int size = MIN_BITS;
+		while (size < MAX_BITS && size < (long)expectedStreams * BITS_PER_STREAM) {
+			size <<= 1;
+		}
+		this.bits = new long[size >> 6];
+		this.mask = size - 1;
+	}
+
+	private StreamPresenceFilter(long[] bits) {
+		this.bits = bits;
+		this.mask = (bits.length << 6) - 1;
+	}
+
+	public void add(String appName, String streamName) {
+		long hash = ConsistentHashRing.hash(appName + "/" + streamName);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param appName
+	 * @param streamName
+	 * @return false if the stream is definitely not in the filter
+	 */
+	public boolean mightContain(String appName, String streamName) {
+		long hash = ConsistentHashRing.hash(appName + "/" + streamName);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of bits in the filter
+	 */
+	public int size() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return The filter as base64
+	 */
+	public String encode() {
+		byte[] bytes = new byte[bits.length * 8];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)(bits[i >>> 3] >>> ((i & 7) * 8));
+		}
+		StringBuffer ret = new StringBuffer((bytes.length + 2) / 3 * 4);
+		Base64Codec.encode(bytes, 0, bytes.length, ret);
+		return ret.toString();
+	}
+
+	/**
+	 * @param encoded A filter from encode()
+	 * @return The filter, or null if it isn't a valid filter
+	 */
+	public static StreamPresenceFilter decode(String encoded) {
+		int length = Base64Codec.decodedLength(encoded);
+		if (length <= 0 || length % 8 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		if (Base64Codec.decode(encoded, bytes) != length) {
+			return null;
+		}
+		long[] bits = new long[length / 8];
+		for (int i = 0; i < length; i++) {
+			bits[i >>> 3] |= (long)(bytes[i] & 0xFF) << ((i & 7) * 8);
+		}
+		return fromBits(bits);
+	}
+
+	/**
+	 * @return The filter's words, for the binary status messages. Must not be modified.
+	 */
+	long[] getBits() {
+		return bits;
+	}
+
+	/**
+	 * @param bits Words from getBits()
+	 * @return The filter, or null if it has an invalid size
+	 */
+	static StreamPresenceFilter fromBits(long[] bits) {
+		int size = bits.length * 64;
+		// The number of bits must be a power of two within the limits, or the bit positions won't match the sender's
+		if (size < MIN_BITS || size > MAX_BITS || (size & (size - 1)) != 0) {
+			return null;
+		}
+		return new StreamPresenceFilter(bits);
+	}
+}
@@ -0,0 +1,388 @@
+/**
+ * SubnetTrie.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.wowza.wms.logging.WMSLoggerFactory;
+
+/**
+ * Longest-prefix-match table from client subnets (IPv4 and IPv6 CIDR ranges) to edge server groups.
+ * 
+ * The table is a binary trie stored in two int arrays, with one root for IPv4 and one for IPv6. It is immutable
+ * once it has been built, so it can be shared between threads without locking. Lookups parse the address
+ * directly from the string into a per-thread buffer, and don't allocate any objects.
+ * 
+ * The mapping file has one range per line, followed by the group name. Empty lines and everything after '#'
+ * are ignored:
+ * <pre>
+ * 10.0.0.0/8       oslo
+ * 192.168.10.0/24  bergen
+ * 2001:db8::/32    oslo
+ * </pre>
+ * IPv4-mapped IPv6 addresses (::ffff:10.1.2.3) are looked up as IPv4 addresses.
+ */
+public class SubnetTrie {
+	private static final int ROOT4 = 0;
+	private static final int ROOT6 = 1;
+
+	/**
+	 * Two entries per node: the child for a 0-bit and the child for a 1-bit. 0 means no child, since the roots are
+	 * never anyone's child.
+	 */
+	private int[] children;
+
+	/**
+	 * Index in groupNames for the range ending in each node, or -1
+	 */
+	private int[] groups;
+
+	private int nodeCount = 2;
+	private final List<String> groupNames = new ArrayList<String>();
+	private String[] groupNamesArray = new String[0];
+
+	/**
+	 * Parse buffer per thread: [0] high 64 bits, [1] low 64 bits, [2] address length in bits, [3..10] IPv6 groups
+	 */
+	private static final ThreadLocal<long[]> parseBuffer = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[11];
+		}
+	};
+
+	public SubnetTrie() {
+		children = new int[2 * 64];
+		groups = new int[64];
+		Arrays.fill(groups, -1);
+	}
+
+	/**
+	 * Load a mapping file. Invalid lines are logged and skipped.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SubnetTrie load(File file) throws IOException {
+		FileReader reader = new FileReader(file);
+		try {
+			return load(reader, file.getPath());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param in
+	 * @param name Used for logging
+	 * @return
+	 * @throws IOException
+	 */
+	public static SubnetTrie load(Reader in, String name) throws IOException {
+		SubnetTrie trie = new SubnetTrie();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if (fields.length != 2 || !trie.add(fields[0], fields[1])) {
+				WMSLoggerFactory.getLogger(SubnetTrie.class).warn("SubnetTrie.load: Ignoring invalid line " + lineNumber + " in '" + name + "': " + line);
+			}
+		}
+		trie.trim();
+		return trie;
+	}
+
+	/**
+	 * Add a range to the table. A later range with the same prefix replaces the earlier one.
+	 * @param cidr An address, with or without a "/prefixLength"
+	 * @param groupName
+	 * @return false if the range is invalid
+	 */
+	public boolean add(String cidr, String groupName) {
+		int slash = cidr.indexOf('/');
+		long[] address = parseBuffer.get();
+		if (!parse(cidr, 0, slash >= 0 ? slash : cidr.length(), address)) {
+			return false;
+		}
+		int addressBits = (int)address[2];
+		int prefixLength = addressBits;
+		if (slash >= 0) {
+			try {
+				prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (prefixLength < 0 || prefixLength > addressBits) {
+				return false;
+			}
+		}
+
+		int group = groupNames.indexOf(groupName);
+		if (group < 0) {
+			group = groupNames.size();
+			groupNames.add(groupName);
+			groupNamesArray = groupNames.toArray(new String[groupNames.size()]);
+		}
+
+		long hi = address[0];
+		long lo = address[1];
+		int node = addressBits == 32 ? ROOT4 : ROOT6;
+		for (int i = 0; i < prefixLength; i++) {
+			int slot = 2 * node + bit(hi, lo, i);
+			if (children[slot] == 0) {
+				// newNode() may replace the children array, so it must be called before the assignment
+				int child = newNode();
+				children[slot] = child;
+			}
+			node = children[slot];
+		}
+		groups[node] = group;
+		return true;
+	}
+
+	private int newNode() {
+		if (nodeCount == groups.length) {
+			int size = groups.length * 2;
+			children = Arrays.copyOf(children, 2 * size);
+			groups = Arrays.copyOf(groups, size);
+			Arrays.fill(groups, nodeCount, size, -1);
+		}
+		return nodeCount++;
+	}
+
+	/**
+	 * Release the unused space after the table has been built
+	 */
+	private void trim() {
+		children = Arrays.copyOf(children, 2 * nodeCount);
+		groups = Arrays.copyOf(groups, nodeCount);
+	}
+
+	/**
+	 * Find the group for the longest range containing an address
+	 * @param ip An IPv4 or IPv6 address. A leading '/', brackets and a zone index are ignored.
+	 * @return The group name, or null if the address is invalid or not in any range
+	 */
+	public String lookup(String ip) {
+		if (ip == null) {
+			return null;
+		}
+		int start = 0;
+		int end = ip.length();
+		if (start < end && ip.charAt(start) == '/') {
+			start++;
+		}
+		if (start < end && ip.charAt(start) == '[') {
+			start++;
+			end = ip.indexOf(']', start);
+			if (end < 0) {
+				return null;
+			}
+		}
+		int zone = ip.indexOf('%', start);
+		if (zone >= 0 && zone < end) {
+			end = zone;
+		}
+
+		long[] address = parseBuffer.get();
+		if (!parse(ip, start, end, address)) {
+			return null;
+		}
+		long hi = address[0];
+		long lo = address[1];
+		int bits = (int)address[2];
+		int node = ROOT6;
+		if (bits == 32) {
+			node = ROOT4;
+		}
+		else if (hi == 0 && (lo >>> 32) == 0xFFFFL) {
+			// IPv4-mapped IPv6 address
+			hi = lo << 32;
+			lo = 0;
+			bits = 32;
+			node = ROOT4;
+		}
+
+		int best = groups[node];
+		for (int i = 0; i < bits; i++) {
+			node = children[2 * node + bit(hi, lo, i)];
+			if (node == 0) {
+				break;
+			}
+			if (groups[node] >= 0) {
+				best = groups[node];
+			}
+		}
+		return best >= 0 ? groupNamesArray[best] : null;
+	}
+
+	/**
+	 * @return All group names in the table
+	 */
+	public String[] getGroupNames() {
+		return groupNamesArray.clone();
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	private static int bit(long hi, long lo, int i) {
+		return (int)((i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1);
+	}
+
+	/**
+	 * Parse an IPv4 or IPv6 address into out. IPv4 addresses are stored in the top 32 bits of out[0].
+	 * @return false if the address is invalid
+	 */
+	private static boolean parse(String s, int start, int end, long[] out) {
+		if (s.indexOf(':', start) < 0 || s.indexOf(':', start) >= end) {
+			long ipv4 = parseIPv4(s, start, end);
+			if (ipv4 < 0) {
+				return false;
+			}
+			out[0] = ipv4 << 32;
+			out[1] = 0;
+			out[2] = 32;
+			return true;
+		}
+
+		// out[3..10] hold the 16-bit groups in the order they were found. gap is the group index of "::".
+		int count = 0;
+		int gap = -1;
+		int i = start;
+		if (end - start >= 2 && s.charAt(start) == ':' && s.charAt(start + 1) == ':') {
+			gap = 0;
+			i += 2;
+		}
+		while (i < end) {
+			int j = i;
+			int value = 0;
+			while (j < end && j - i < 5) {
+				int digit = Character.digit(s.charAt(j), 16);
+				if (digit < 0) {
+					break;
+				}
+				value = (value << 4) | digit;
+				j++;
+			}
+			if (j < end && s.charAt(j) == '.') {
+				// IPv4 suffix, as in ::ffff:10.1.2.3
+				long ipv4 = parseIPv4(s, i, end);
+				if (ipv4 < 0 || count > 6) {
+					return false;
+				}
+				out[3 + count++] = ipv4 >>> 16;
+				out[3 + count++] = ipv4 & 0xFFFF;
+				break;
+			}
+			if (j == i || j - i > 4 || count == 8) {
+				return false;
+			}
+			out[3 + count++] = value;
+			if (j == end) {
+				break;
+			}
+			if (s.charAt(j) != ':') {
+				return false;
+			}
+			j++;
+			if (j < end && s.charAt(j) == ':') {
+				if (gap >= 0) {
+					return false;
+				}
+				gap = count;
+				j++;
+			}
+			else if (j == end) {
+				return false;
+			}
+			i = j;
+		}
+		if (gap < 0 ? count != 8 : count > 7) {
+			return false;
+		}
+
+		long hi = 0;
+		long lo = 0;
+		for (int k = 0; k < count; k++) {
+			int position = (gap >= 0 && k >= gap) ? k + 8 - count : k;
+			if (position < 4) {
+				hi |= out[3 + k] << (16 * (3 - position));
+			}
+			else {
+				lo |= out[3 + k] << (16 * (7 - position));
+			}
+		}
+		out[0] = hi;
+		out[1] = lo;
+		out[2] = 128;
+		return true;
+	}
+
+	/**
+	 * @return The address as an unsigned 32-bit value, or -1 if it is invalid
+	 */
+	private static long parseIPv4(String s, int start, int end) {
+		long address = 0;
+		int octets = 0;
+		int i = start;
+		while (i <= end) {
+			int j = i;
+			int value = 0;
+			while (j < end && j - i < 4) {
+				char c = s.charAt(j);
+				if (c < '0' || c > '9') {
+					break;
+				}
+				value = value * 10 + (c - '0');
+				j++;
+			}
+			if (j == i || j - i > 3 || value > 255 || octets == 4) {
+				return -1;
+			}
+			address = (address << 8) | value;
+			octets++;
+			if (j == end) {
+				break;
+			}
+			if (s.charAt(j) != '.') {
+				return -1;
+			}
+			i = j + 1;
+		}
+		return octets == 4 ? address : -1;
+	}
+}
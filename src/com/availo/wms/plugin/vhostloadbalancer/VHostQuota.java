@@ -0,0 +1,105 @@
+/**
+ * VHostQuota.java
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.availo.wms.plugin.vhostloadbalancer;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.wowza.wms.logging.WMSLoggerFactory;
+
+/**
+ * Share of the cluster's total capacity that a vhost is guaranteed, and the share it may burst up to.
+ * 
+ * Quotas are configured on the listener as a comma separated list of "vhostName=minimum:maximum", in percent of
+ * the sum of the capacities reported by the running senders, for example "_defaultVHost_=20:100,customer2=10:40".
+ * Vhosts without a quota have a minimum of 0% and a maximum of 100%.
+ */
+public class VHostQuota {
+	public static final VHostQuota UNLIMITED = new VHostQuota(0, 100);
+
+	final int minimumPercent;
+	final int maximumPercent;
+
+	public VHostQuota(int minimumPercent, int maximumPercent) {
+		this.minimumPercent = minimumPercent;
+		this.maximumPercent = maximumPercent;
+	}
+
+	public int getMinimumPercent() {
+		return minimumPercent;
+	}
+
+	public int getMaximumPercent() {
+		return maximumPercent;
+	}
+
+	/**
+	 * @param capacity The cluster's total capacity
+	 * @return The load this vhost is guaranteed
+	 */
+	long getMinimum(long capacity) {
+		return capacity / 100 * minimumPercent;
+	}
+
+	/**
+	 * @param capacity The cluster's total capacity
+	 * @return The maximum load for this vhost
+	 */
+	long getMaximum(long capacity) {
+		return capacity / 100 * maximumPercent;
+	}
+
+	/**
+	 * Parse a quota list. Invalid entries are logged and skipped.
+	 * @param quotas "vhostName=minimum:maximum,..."
+	 * @return The quota per vhost name
+	 */
+	public static Map<String, VHostQuota> parse(String quotas) {
+		Map<String, VHostQuota> ret = new HashMap<String, VHostQuota>();
+		if (quotas == null) {
+			return ret;
+		}
+		String[] entries = quotas.split(",");
+		for (int i = 0; i < entries.length; i++) {
+			String entry = entries[i].trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int equals = entry.indexOf('=');
+			int colon = entry.indexOf(':', equals + 1);
+			try {
+				if (equals <= 0 || colon < 0) {
+					throw new NumberFormatException();
+				}
+				int minimum = Integer.parseInt(entry.substring(equals + 1, colon).trim());
+				int maximum = Integer.parseInt(entry.substring(colon + 1).trim());
+				if (minimum < 0 || maximum > 100 || minimum > maximum) {
+					throw new NumberFormatException();
+				}
+				ret.put(entry.substring(0, equals).trim(), new VHostQuota(minimum, maximum));
+			} catch (NumberFormatException e) {
+				WMSLoggerFactory.getLogger(VHostQuota.class).warn("VHostQuota.parse: Ignoring invalid quota '" + entry + "'. Expected 'vhostName=minimum:maximum' in percent.");
+			}
+		}
+		return ret;
+	}
+
+	public String toString() {
+		return minimumPercent + "%-" + maximumPercent + "%";
+	}
+}